@@ -0,0 +1,154 @@
+package com.tuxpan.foregroundcameragalleryplugin;
+
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Output stream encoding what is written to Base64, without line wraps, into
+ * a single growing buffer. Compressing a bitmap straight into it spares the
+ * full copies of the JPEG in a ByteArrayOutputStream, its toByteArray() and
+ * the encoder input. Plain Java, so it runs on any JVM.
+ */
+public class Base64Buffer extends OutputStream {
+
+	private static final byte[] ALPHABET = { 'A', 'B', 'C', 'D', 'E', 'F', 'G', 'H', 'I', 'J', 'K', 'L', 'M', 'N', 'O', 'P', 'Q', 'R', 'S', 'T', 'U', 'V', 'W', 'X', 'Y', 'Z', 'a',
+			'b', 'c', 'd', 'e', 'f', 'g', 'h', 'i', 'j', 'k', 'l', 'm', 'n', 'o', 'p', 'q', 'r', 's', 't', 'u', 'v', 'w', 'x', 'y', 'z', '0', '1', '2', '3', '4', '5',
+			'6', '7', '8', '9', '+', '/' };
+
+	// Bytes per 1000 pixels of a JPEG of random noise, the worst case, by
+	// quality in steps of 5. Measured with the IJG quantization tables and the
+	// 4:2:0 chroma subsampling Bitmap.compress() uses, plus 5%.
+	private static final int[] JPEG_BYTES_PER_KILOPIXEL = { 50, 70, 120, 165, 210, 255, 295, 330, 365, 400, 435, 465, 500, 540, 585, 635, 705, 800, 945, 1235,
+			2080 };
+	// Markers, quantization and Huffman tables.
+	private static final int JPEG_HEADERS = 1024;
+
+	private byte[] buffer;
+	private int count;
+	// Input bytes waiting for a full group of three.
+	private int pending;
+	private int pendingCount;
+	private boolean closed;
+
+	/**
+	 * @param expectedInput
+	 *            Expected number of bytes written, to size the buffer once.
+	 */
+	public Base64Buffer(int expectedInput) {
+		buffer = new byte[getEncodedLength(Math.max(expectedInput, 3))];
+	}
+
+	/**
+	 * Bound the size of an image compressed to JPEG, to size the buffer so it
+	 * never has to grow.
+	 *
+	 * @param width
+	 * @param height
+	 * @param quality
+	 *            JPEG quality, 0 to 100.
+	 * @return an upper bound of the size of the JPEG, in bytes
+	 */
+	public static int getJpegSizeBound(int width, int height, int quality) {
+		int q = Math.max(0, Math.min(100, quality));
+		int i = Math.min(q / 5, JPEG_BYTES_PER_KILOPIXEL.length - 2);
+		// The size grows faster than linearly with the quality, so the chord
+		// between two measures stays above it.
+		int rate = JPEG_BYTES_PER_KILOPIXEL[i] + (JPEG_BYTES_PER_KILOPIXEL[i + 1] - JPEG_BYTES_PER_KILOPIXEL[i]) * (q - i * 5) / 5;
+		long bound = JPEG_HEADERS + ((long) width * height * rate + 999) / 1000;
+		return (int) Math.min(Integer.MAX_VALUE / 2, bound);
+	}
+
+	/**
+	 * @param length
+	 * @return the length of the Base64 encoding of length bytes
+	 */
+	public static int getEncodedLength(int length) {
+		return (length + 2) / 3 * 4;
+	}
+
+	@Override
+	public void write(int b) {
+		pending = (pending << 8) | (b & 0xFF);
+		if (++pendingCount == 3) {
+			ensureCapacity(4);
+			encodeGroup(pending);
+			pending = 0;
+			pendingCount = 0;
+		}
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) {
+		int end = off + len;
+		// Complete the pending group first.
+		while (pendingCount != 0 && off < end) {
+			write(b[off++]);
+		}
+		int groups = (end - off) / 3;
+		ensureCapacity(groups * 4);
+		for (int i = 0; i < groups; i++, off += 3) {
+			encodeGroup(((b[off] & 0xFF) << 16) | ((b[off + 1] & 0xFF) << 8) | (b[off + 2] & 0xFF));
+		}
+		while (off < end) {
+			write(b[off++]);
+		}
+	}
+
+	/**
+	 * Encode the last bytes, with padding. Nothing can be written afterwards.
+	 */
+	@Override
+	public void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		if (pendingCount == 0) {
+			return;
+		}
+		ensureCapacity(4);
+		int group = pending << (8 * (3 - pendingCount));
+		buffer[count++] = ALPHABET[(group >> 18) & 0x3F];
+		buffer[count++] = ALPHABET[(group >> 12) & 0x3F];
+		buffer[count++] = pendingCount == 2 ? ALPHABET[(group >> 6) & 0x3F] : (byte) '=';
+		buffer[count++] = '=';
+		pendingCount = 0;
+	}
+
+	/**
+	 * @return the number of Base64 characters so far
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Close the stream and return the encoding.
+	 */
+	@Override
+	public String toString() {
+		close();
+		try {
+			return new String(buffer, 0, count, "US-ASCII");
+		} catch (UnsupportedEncodingException e) {
+			// US-ASCII is always supported
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private void encodeGroup(int group) {
+		buffer[count++] = ALPHABET[(group >> 18) & 0x3F];
+		buffer[count++] = ALPHABET[(group >> 12) & 0x3F];
+		buffer[count++] = ALPHABET[(group >> 6) & 0x3F];
+		buffer[count++] = ALPHABET[group & 0x3F];
+	}
+
+	private void ensureCapacity(int extra) {
+		if (count + extra > buffer.length) {
+			// The estimate was short, grow by half.
+			byte[] grown = new byte[Math.max(count + extra, buffer.length + (buffer.length >> 1))];
+			System.arraycopy(buffer, 0, grown, 0, count);
+			buffer = grown;
+		}
+	}
+}
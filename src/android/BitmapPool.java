@@ -0,0 +1,244 @@
+package com.tuxpan.foregroundcameragalleryplugin;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+
+/**
+ * Pool of mutable bitmaps that are no longer needed, grouped by size and
+ * config, so new thumbnails and decodes can reuse their memory (directly or
+ * through {@link BitmapFactory.Options#inBitmap}) instead of allocating.
+ *
+ * Bitmaps that are still displayed are tracked with {@link #retain(Bitmap)}
+ * and {@link #release(Bitmap)}; a bitmap offered to the pool while displayed
+ * only becomes reusable once its last user releases it.
+ */
+public class BitmapPool {
+
+	// Fraction of the memory class the pooled bitmaps may take.
+	private static final int MEMORY_FRACTION = 16;
+
+	private static BitmapPool instance;
+
+	private final int maxBytes;
+	private final Map<Long, LinkedList<Bitmap>> buckets = new HashMap<Long, LinkedList<Bitmap>>();
+	private final Map<Bitmap, Integer> retained = new IdentityHashMap<Bitmap, Integer>();
+	private final Map<Bitmap, Boolean> released = new IdentityHashMap<Bitmap, Boolean>();
+	private int size;
+	private int reuseCount;
+	private int missCount;
+
+	/**
+	 * Get the pool shared by the gallery and the camera launcher.
+	 *
+	 * @param context
+	 * @return the shared pool
+	 */
+	public static synchronized BitmapPool getInstance(Context context) {
+		if (instance == null) {
+			ActivityManager am = (ActivityManager) context.getApplicationContext().getSystemService(Context.ACTIVITY_SERVICE);
+			instance = new BitmapPool(am.getMemoryClass() * 1024 * 1024 / MEMORY_FRACTION);
+		}
+		return instance;
+	}
+
+	BitmapPool(int maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Take a pooled bitmap of exactly the given size and config. Its content
+	 * is undefined.
+	 *
+	 * @param width
+	 * @param height
+	 * @param config
+	 * @return a pooled bitmap, or a new one if none fits
+	 */
+	public Bitmap get(int width, int height, Bitmap.Config config) {
+		Bitmap bitmap = take(width, height, config);
+		return bitmap != null ? bitmap : Bitmap.createBitmap(width, height, config);
+	}
+
+	/**
+	 * Take a pooled bitmap of exactly the given size and config.
+	 *
+	 * @param width
+	 * @param height
+	 * @param config
+	 * @return a pooled bitmap, or null if none fits
+	 */
+	public synchronized Bitmap take(int width, int height, Bitmap.Config config) {
+		LinkedList<Bitmap> bucket = buckets.get(key(width, height, config));
+		if (bucket == null || bucket.isEmpty()) {
+			missCount++;
+			return null;
+		}
+		Bitmap bitmap = bucket.removeFirst();
+		size -= byteCount(bitmap);
+		reuseCount++;
+		return bitmap;
+	}
+
+	/**
+	 * Prepare decode options so the decode reuses a pooled bitmap, if one can
+	 * hold the result. Options must already carry the bounds of the image
+	 * (outWidth/outHeight) and the inSampleSize.
+	 *
+	 * @param options
+	 */
+	public synchronized void addInBitmapOptions(BitmapFactory.Options options) {
+		options.inMutable = true;
+		if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+			return;
+		}
+		int sampleSize = Math.max(options.inSampleSize, 1);
+		int width = options.outWidth / sampleSize;
+		int height = options.outHeight / sampleSize;
+		Bitmap.Config config = options.inPreferredConfig != null ? options.inPreferredConfig : Bitmap.Config.ARGB_8888;
+
+		Bitmap candidate = null;
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+			// Any bitmap large enough can be reconfigured.
+			int needed = width * height * bytesPerPixel(config);
+			for (LinkedList<Bitmap> bucket : buckets.values()) {
+				for (Iterator<Bitmap> it = bucket.iterator(); it.hasNext();) {
+					Bitmap bitmap = it.next();
+					if (bitmap.getAllocationByteCount() >= needed && (candidate == null || byteCount(bitmap) < byteCount(candidate))) {
+						candidate = bitmap;
+					}
+				}
+			}
+		} else if (sampleSize == 1) {
+			// Before KitKat the sizes must match and no sampling is allowed.
+			LinkedList<Bitmap> bucket = buckets.get(key(width, height, config));
+			if (bucket != null && !bucket.isEmpty()) {
+				candidate = bucket.getFirst();
+			}
+		}
+
+		if (candidate != null) {
+			buckets.get(key(candidate.getWidth(), candidate.getHeight(), candidate.getConfig())).remove(candidate);
+			size -= byteCount(candidate);
+			reuseCount++;
+			options.inBitmap = candidate;
+		} else {
+			missCount++;
+		}
+	}
+
+	/**
+	 * Offer a bitmap that its owner no longer needs. It is pooled once nobody
+	 * displays it anymore, or recycled if it cannot be reused.
+	 *
+	 * @param bitmap
+	 */
+	public synchronized void put(Bitmap bitmap) {
+		if (bitmap == null || bitmap.isRecycled()) {
+			return;
+		}
+		if (retained.containsKey(bitmap)) {
+			released.put(bitmap, Boolean.TRUE);
+			return;
+		}
+		int bytes = byteCount(bitmap);
+		if (!bitmap.isMutable() || bitmap.getConfig() == null || size + bytes > maxBytes) {
+			bitmap.recycle();
+			return;
+		}
+		Long key = key(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+		LinkedList<Bitmap> bucket = buckets.get(key);
+		if (bucket == null) {
+			bucket = new LinkedList<Bitmap>();
+			buckets.put(key, bucket);
+		}
+		bucket.addLast(bitmap);
+		size += bytes;
+	}
+
+	/**
+	 * Mark a bitmap as displayed, so it is not reused meanwhile.
+	 *
+	 * @param bitmap
+	 */
+	public synchronized void retain(Bitmap bitmap) {
+		Integer count = retained.get(bitmap);
+		retained.put(bitmap, count == null ? 1 : count + 1);
+	}
+
+	/**
+	 * Undo a {@link #retain(Bitmap)}. If the bitmap was offered to the pool
+	 * while displayed and this was its last user, it is pooled now.
+	 *
+	 * @param bitmap
+	 */
+	public synchronized void release(Bitmap bitmap) {
+		Integer count = retained.get(bitmap);
+		if (count == null) {
+			return;
+		}
+		if (count > 1) {
+			retained.put(bitmap, count - 1);
+			return;
+		}
+		retained.remove(bitmap);
+		if (released.remove(bitmap) != null) {
+			put(bitmap);
+		}
+	}
+
+	/**
+	 * Recycle every pooled bitmap.
+	 */
+	public synchronized void clear() {
+		for (LinkedList<Bitmap> bucket : buckets.values()) {
+			for (Bitmap bitmap : bucket) {
+				bitmap.recycle();
+			}
+		}
+		buckets.clear();
+		size = 0;
+	}
+
+	public synchronized int getSize() {
+		return size;
+	}
+
+	public synchronized int getReuseCount() {
+		return reuseCount;
+	}
+
+	public synchronized int getMissCount() {
+		return missCount;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "BitmapPool[bytes=" + size + "/" + maxBytes + ", reused=" + reuseCount + ", misses=" + missCount + "]";
+	}
+
+	private static Long key(int width, int height, Bitmap.Config config) {
+		return Long.valueOf(((long) width << 32) | ((long) height << 8) | config.ordinal());
+	}
+
+	private static int byteCount(Bitmap bitmap) {
+		return bitmap.getRowBytes() * bitmap.getHeight();
+	}
+
+	private static int bytesPerPixel(Bitmap.Config config) {
+		if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) {
+			return 2;
+		} else if (config == Bitmap.Config.ALPHA_8) {
+			return 1;
+		}
+		return 4;
+	}
+}
@@ -0,0 +1,265 @@
+package com.tuxpan.foregroundcameragalleryplugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import android.media.ExifInterface;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Persists the pictures of a burst capture. Captured JPEGs go through three
+ * stages, each on its own worker: the hand-off into the bounded capture queue,
+ * the EXIF orientation fix-up with {@link ExifOrientation}, then the disk
+ * write. The queues between the stages are bounded, so a slow disk holds back
+ * the fix-up, and the hand-off blocks while the capture queue is full. The
+ * camera takes the next picture once the previous one is queued, see
+ * {@link #put(byte[], int, Runnable)}.
+ *
+ * The camera starts the burst with {@link #begin(File)} and the launcher
+ * collects it with {@link #end()} and {@link #await()}. A burst that is never
+ * collected is stopped by the next {@link #begin(File)}.
+ */
+public class BurstPipeline {
+
+	private static final String TAG = "BurstPipeline";
+
+	// Pictures waiting at each stage.
+	private static final int QUEUE_CAPACITY = 3;
+
+	private static BurstPipeline current;
+
+	private final File directory;
+	private final String prefix;
+	// The picture being handed off, then END.
+	private final BlockingQueue<Shot> taken = new ArrayBlockingQueue<Shot>(1);
+	private final BlockingQueue<Shot> captured = new ArrayBlockingQueue<Shot>(QUEUE_CAPACITY);
+	private final BlockingQueue<Shot> fixed = new ArrayBlockingQueue<Shot>(QUEUE_CAPACITY);
+	private final List<File> files = new ArrayList<File>();
+	private final Handler mainHandler = new Handler(Looper.getMainLooper());
+	private final Thread handoffWorker;
+	private final Thread exifWorker;
+	private final Thread writeWorker;
+
+	private int count;
+	private long firstCapture;
+	private volatile long lastWrite;
+	private volatile boolean stopped;
+
+	private static class Shot {
+		final byte[] jpeg;
+		final int orientation;
+		final File file;
+		final Runnable queued;
+		byte[] segment;
+
+		Shot(byte[] jpeg, int orientation, File file, Runnable queued) {
+			this.jpeg = jpeg;
+			this.orientation = orientation;
+			this.file = file;
+			this.queued = queued;
+		}
+	}
+
+	// Queued after the last picture to stop the workers.
+	private static final Shot END = new Shot(null, ExifInterface.ORIENTATION_UNDEFINED, null, null);
+
+	/**
+	 * Start a burst, replacing the current one if it was never collected.
+	 *
+	 * @param directory
+	 *            Directory of the pictures.
+	 * @return the pipeline of the burst
+	 */
+	public static synchronized BurstPipeline begin(File directory) {
+		if (current != null) {
+			current.stop();
+		}
+		current = new BurstPipeline(directory);
+		return current;
+	}
+
+	/**
+	 * @return the current burst, now finished, or null if there is none
+	 */
+	public static synchronized BurstPipeline end() {
+		BurstPipeline pipeline = current;
+		current = null;
+		return pipeline;
+	}
+
+	private BurstPipeline(File directory) {
+		this.directory = directory;
+		this.prefix = "burst-" + System.currentTimeMillis() + "-";
+		handoffWorker = new Thread(new Runnable() {
+			public void run() {
+				handOff();
+			}
+		}, "BurstPipeline-handoff");
+		exifWorker = new Thread(new Runnable() {
+			public void run() {
+				Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+				fixUp();
+			}
+		}, "BurstPipeline-exif");
+		writeWorker = new Thread(new Runnable() {
+			public void run() {
+				Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+				write();
+			}
+		}, "BurstPipeline-write");
+		handoffWorker.start();
+		exifWorker.start();
+		writeWorker.start();
+	}
+
+	/**
+	 * Queue a captured picture without blocking the caller. The hand-off
+	 * worker waits while the capture queue is full and then runs the callback
+	 * on the main thread. Only one picture is handed off at a time, so the
+	 * camera takes the next one from the callback. The data must not be
+	 * modified afterwards.
+	 *
+	 * @param jpeg
+	 * @param orientation
+	 *            One of the ExifInterface ORIENTATION_ values.
+	 * @param queued
+	 *            Run on the main thread once the picture is queued.
+	 * @return false if the picture was dropped, because the burst was stopped
+	 *         or the previous picture is still being handed off
+	 */
+	public boolean put(byte[] jpeg, int orientation, Runnable queued) {
+		synchronized (this) {
+			if (stopped) {
+				return false;
+			}
+			Shot shot = new Shot(jpeg, orientation, new File(directory, prefix + count + ".jpg"), queued);
+			if (!taken.offer(shot)) {
+				Log.d(TAG, "Hand-off busy, dropping picture " + count);
+				return false;
+			}
+			if (count == 0) {
+				firstCapture = System.nanoTime();
+			}
+			count++;
+		}
+		return true;
+	}
+
+	/**
+	 * @return the number of pictures queued
+	 */
+	public synchronized int getCount() {
+		return count;
+	}
+
+	/**
+	 * Wait for the queued pictures to be written and stop the workers. Must
+	 * not be called on the main thread.
+	 *
+	 * @return the files written, in capture order
+	 * @throws InterruptedException
+	 */
+	public List<File> await() throws InterruptedException {
+		taken.put(END);
+		writeWorker.join();
+		synchronized (files) {
+			return new ArrayList<File>(files);
+		}
+	}
+
+	/**
+	 * @return the pictures written per second from the first capture to the
+	 *         last write, once {@link #await()} returned
+	 */
+	public synchronized float getFramesPerSecond() {
+		int written;
+		synchronized (files) {
+			written = files.size();
+		}
+		long elapsed = lastWrite - firstCapture;
+		return written > 0 && elapsed > 0 ? written * 1000000000f / elapsed : 0;
+	}
+
+	/**
+	 * Stop the workers of a burst that will not be collected, dropping the
+	 * queued pictures and deleting the ones written.
+	 */
+	private void stop() {
+		synchronized (this) {
+			stopped = true;
+		}
+		handoffWorker.interrupt();
+		exifWorker.interrupt();
+		writeWorker.interrupt();
+	}
+
+	private void handOff() {
+		try {
+			while (true) {
+				Shot shot = taken.take();
+				captured.put(shot);
+				if (shot == END) {
+					return;
+				}
+				mainHandler.post(shot.queued);
+			}
+		} catch (InterruptedException e) {
+			Log.d(TAG, "Hand-off worker interrupted");
+		}
+	}
+
+	private void fixUp() {
+		try {
+			while (true) {
+				Shot shot = captured.take();
+				if (shot != END && shot.orientation != ExifInterface.ORIENTATION_UNDEFINED) {
+					shot.segment = ExifOrientation.splice(shot.jpeg, shot.orientation);
+				}
+				fixed.put(shot);
+				if (shot == END) {
+					return;
+				}
+			}
+		} catch (InterruptedException e) {
+			Log.d(TAG, "EXIF worker interrupted");
+		}
+	}
+
+	private void write() {
+		try {
+			while (true) {
+				Shot shot = fixed.take();
+				if (shot == END) {
+					return;
+				}
+				try {
+					JpegWriter.write(shot.jpeg, shot.segment, shot.orientation, shot.file);
+					synchronized (files) {
+						files.add(shot.file);
+					}
+					lastWrite = System.nanoTime();
+				} catch (IOException e) {
+					Log.d(TAG, "Error writing " + shot.file + ": " + e.getMessage());
+				}
+			}
+		} catch (InterruptedException e) {
+			Log.d(TAG, "Write worker interrupted");
+		} finally {
+			if (stopped) {
+				synchronized (files) {
+					for (File file : files) {
+						file.delete();
+					}
+					files.clear();
+				}
+			}
+		}
+	}
+}
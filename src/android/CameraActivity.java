@@ -17,10 +17,6 @@
 package com.tuxpan.foregroundcameragalleryplugin;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.util.List;
 
 import android.app.Activity;
 import android.content.pm.PackageManager;
@@ -32,14 +28,17 @@ import android.hardware.SensorManager;
 import android.media.ExifInterface;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.provider.MediaStore;
 import android.util.Log;
+import android.view.MotionEvent;
 import android.view.OrientationEventListener;
 import android.view.View;
 import android.widget.CompoundButton;
 import android.widget.FrameLayout;
 import android.widget.ImageButton;
 import android.widget.RelativeLayout;
+import android.widget.Toast;
 import android.widget.ZoomControls;
 
 /**
@@ -49,6 +48,45 @@ public class CameraActivity extends Activity {
 
 	private static final String TAG = "CameraActivity";
 
+	/**
+	 * Boolean extra: keep taking pictures on each tap, or while the capture
+	 * button is held, until the cancel button. The pictures go to a
+	 * {@link BurstPipeline}.
+	 */
+	public static final String EXTRA_BURST = "burst";
+
+	/**
+	 * Int extras: size the picture will be scaled to, -1 if unspecified, and
+	 * JPEG quality. The smallest picture size covering the target is taken.
+	 */
+	public static final String EXTRA_TARGET_WIDTH = "targetWidth";
+	public static final String EXTRA_TARGET_HEIGHT = "targetHeight";
+	public static final String EXTRA_QUALITY = "quality";
+
+	/**
+	 * Boolean extra: score the sharpness and exposure of the preview frames
+	 * and warn about blurry or badly exposed pictures.
+	 */
+	public static final String EXTRA_ANALYZE_PREVIEW = "analyzePreview";
+
+	/**
+	 * Boolean extra: take the picture from the next preview frame, without
+	 * autofocus, when the preview is large enough for the target size.
+	 */
+	public static final String EXTRA_FAST_CAPTURE = "fastCapture";
+
+	/**
+	 * Long extra: SystemClock.elapsedRealtime() when the picture was
+	 * requested, the start of the time to first frame.
+	 */
+	public static final String EXTRA_START_TIME = "startTime";
+
+	// Largest difference between the aspect ratio of a picture size and the
+	// one of the sensor.
+	private static final float ASPECT_TOLERANCE = 0.05f;
+	// JPEG quality of grabbed frames without a quality extra.
+	private static final int DEFAULT_QUALITY = 90;
+
 	private Camera mCamera;
 	private CameraPreview mPreview;
 	private boolean pressed = false;
@@ -56,6 +94,30 @@ public class CameraActivity extends Activity {
 	private OrientationEventListener mOrientationEventListener;
 	private int mOrientation = -1;
 
+	private FrameScorer scorer;
+	private FrameGrabber grabber;
+	private PreviewAnalyzer analyzer;
+	private int targetWidth;
+	private int targetHeight;
+	private long startTime;
+	private CameraCapabilities capabilities;
+	private boolean destroyed;
+
+	private boolean burst;
+	private BurstPipeline pipeline;
+	// Taps not captured yet, and whether the capture button is held.
+	private int pendingShots;
+	private boolean holding;
+	private boolean capturing;
+	private boolean finishing;
+	// Run once the pipeline queued the picture taken.
+	private final Runnable captureQueued = new Runnable() {
+		public void run() {
+			capturing = false;
+			captureNext();
+		}
+	};
+
 	private static final int ORIENTATION_PORTRAIT_NORMAL = 1;
 	private static final int ORIENTATION_PORTRAIT_INVERTED = 2;
 	private static final int ORIENTATION_LANDSCAPE_NORMAL = 3;
@@ -65,43 +127,111 @@ public class CameraActivity extends Activity {
 	public void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
 		setContentView(getResources().getIdentifier("foregroundcameraplugin", "layout", getPackageName()));
-		// Create an instance of Camera
-		mCamera = getCameraInstance();
-
-		if (mCamera == null) {
-			setResult(RESULT_CANCELED);
-			finish();
-			return;
-		}
-
-		final Camera.Parameters params = mCamera.getParameters();
-		List<Camera.Size> sizes = params.getSupportedPictureSizes();
+		startTime = getIntent().getLongExtra(EXTRA_START_TIME, SystemClock.elapsedRealtime());
+		targetWidth = getIntent().getIntExtra(EXTRA_TARGET_WIDTH, -1);
+		targetHeight = getIntent().getIntExtra(EXTRA_TARGET_HEIGHT, -1);
+		final int quality = getIntent().getIntExtra(EXTRA_QUALITY, 0);
+
+		// Create an instance of Camera, off the main thread
+		CameraOpener.getInstance().open(new CameraOpener.Callback() {
+			public void configure(Camera camera, Camera.Parameters params) {
+				capabilities = CameraCapabilities.get(CameraActivity.this, params);
+				int[] sizes = capabilities.getPictureSizes();
+				int size = choosePictureSize(sizes, targetWidth, targetHeight);
+				if (size >= 0) {
+					params.setPictureSize(sizes[size], sizes[size + 1]);
+				}
+				if (quality > 0) {
+					params.setJpegQuality(Math.min(quality, 100));
+				}
+				params.setFlashMode(Camera.Parameters.FLASH_MODE_OFF);
 
-		int w = 0, h = 0;
-		for (Camera.Size s : sizes) {
-			// If larger, take it
-			if (s.width * s.height > w * h) {
-				w = s.width;
-				h = s.height;
+				camera.setParameters(params);
 			}
-		}
 
-		params.setPictureSize(w, h);
-		params.setFlashMode(Camera.Parameters.FLASH_MODE_OFF);
-
-		mCamera.setParameters(params);
+			public void onOpened(Camera camera, Camera.Parameters params, final boolean prewarmed) {
+				if (destroyed) {
+					if (camera != null) {
+						camera.release();
+					}
+					return;
+				}
+				if (camera == null) {
+					setResult(RESULT_CANCELED);
+					finish();
+					return;
+				}
+				mCamera = camera;
+				onCameraOpened(params, quality);
+				mPreview.setFirstFrameCallback(new Runnable() {
+					public void run() {
+						Log.d(TAG, "Time to first frame " + (SystemClock.elapsedRealtime() - startTime) + " ms, pre-warmed: " + prewarmed);
+					}
+				});
+			}
+		});
+	}
 
+	/**
+	 * Set up the preview and the controls once the camera is open.
+	 * 
+	 * @param params
+	 *            The parameters of the camera.
+	 * @param quality
+	 *            The quality extra.
+	 */
+	private void onCameraOpened(final Camera.Parameters params, int quality) {
 		// Create a Preview and set it as the content of activity.
-		mPreview = new CameraPreview(this, mCamera);
+		mPreview = new CameraPreview(this, mCamera, params, capabilities);
+		if (getIntent().getBooleanExtra(EXTRA_ANALYZE_PREVIEW, false)) {
+			scorer = new FrameScorer();
+		}
+		if (getIntent().getBooleanExtra(EXTRA_FAST_CAPTURE, false) && (targetWidth > 0 || targetHeight > 0)) {
+			grabber = new FrameGrabber(quality > 0 ? Math.min(quality, 100) : DEFAULT_QUALITY);
+		}
+		if (scorer != null && grabber != null) {
+			analyzer = new PreviewAnalyzer(scorer, grabber);
+		} else if (scorer != null || grabber != null) {
+			analyzer = new PreviewAnalyzer(scorer != null ? scorer : grabber);
+		}
+		if (analyzer != null) {
+			mPreview.setAnalyzer(analyzer);
+		}
 
 		FrameLayout preview = (FrameLayout) findViewById(getResources().getIdentifier("camera_preview", "id", getPackageName()));
 		preview.addView(mPreview);
 		
 		// Add a listener to the Capture button
 		ImageButton captureButton = (ImageButton) findViewById(getResources().getIdentifier("button_capture", "id", getPackageName()));
+		burst = getIntent().getBooleanExtra(EXTRA_BURST, false);
+		if (burst) {
+			Uri fileUri = (Uri) getIntent().getExtras().get(MediaStore.EXTRA_OUTPUT);
+			pipeline = BurstPipeline.begin(new File(fileUri.getPath()).getParentFile());
+			captureButton.setOnLongClickListener(new View.OnLongClickListener() {
+				public boolean onLongClick(View v) {
+					holding = true;
+					captureNext();
+					return true;
+				}
+			});
+			captureButton.setOnTouchListener(new View.OnTouchListener() {
+				public boolean onTouch(View v, MotionEvent event) {
+					if (event.getAction() == MotionEvent.ACTION_UP || event.getAction() == MotionEvent.ACTION_CANCEL) {
+						holding = false;
+					}
+					return false;
+				}
+			});
+		}
 		captureButton.setOnClickListener(new View.OnClickListener() {
 			public void onClick(View v) {
 
+				if (burst) {
+					pendingShots++;
+					captureNext();
+					return;
+				}
+
 				if (pressed || mCamera == null)
 					return;
 
@@ -110,6 +240,12 @@ public class CameraActivity extends Activity {
 				// http://code.google.com/p/foreground-camera-plugin/issues/detail?id=1
 				pressed = true;
 
+				warnAboutFrame();
+
+				if (grabFrame()) {
+					return;
+				}
+
 				// get an image from the camera
 				mCamera.autoFocus(new AutoFocusCallback() {
 
@@ -123,6 +259,10 @@ public class CameraActivity extends Activity {
 		ImageButton cancelButton = (ImageButton) findViewById(getResources().getIdentifier("button_cancel", "id", getPackageName()));
 		cancelButton.setOnClickListener(new View.OnClickListener() {
 			public void onClick(View v) {
+				if (burst) {
+					finishBurst();
+					return;
+				}
 				pressed = false;
 				setResult(RESULT_CANCELED);
 				finish();
@@ -250,26 +390,26 @@ public class CameraActivity extends Activity {
 	}
 
 	/**
-	 * Performs required action to accommodate new orientation
+	 * Performs required action to accommodate new orientation. The picture
+	 * orientation is written to its EXIF data from the current orientation
+	 * (see {@link #getExifOrientation()}), so the rotation of the camera
+	 * parameters is left alone and they are not read again.
 	 * 
 	 * @param orientation
 	 * @param lastOrientation
 	 */
 	private void changeRotation(int orientation, int lastOrientation) {
-		final Camera.Parameters params = mCamera.getParameters();
 		switch (orientation) {
 		case ORIENTATION_PORTRAIT_NORMAL:
 			// mSnapButton.setImageDrawable(getRotatedImage(android.R.drawable.ic_menu_camera,
 			// 270));
 			// mBackButton.setImageDrawable(getRotatedImage(android.R.drawable.ic_menu_revert,
 			// 270));
-			params.setRotation(90);
 			Log.v("CameraActivity", "Orientation = 90");
 			break;
 		case ORIENTATION_LANDSCAPE_NORMAL:
 			// mSnapButton.setImageResource(android.R.drawable.ic_menu_camera);
 			// mBackButton.setImageResource(android.R.drawable.ic_menu_revert);
-			params.setRotation(0);
 			Log.v("CameraActivity", "Orientation = 0");
 			break;
 		case ORIENTATION_PORTRAIT_INVERTED:
@@ -277,7 +417,6 @@ public class CameraActivity extends Activity {
 			// 90));
 			// mBackButton.setImageDrawable(getRotatedImage(android.R.drawable.ic_menu_revert,
 			// 90));
-			params.setRotation(270);
 			Log.v("CameraActivity", "Orientation = 270");
 			break;
 		case ORIENTATION_LANDSCAPE_INVERTED:
@@ -285,7 +424,6 @@ public class CameraActivity extends Activity {
 			// 180));
 			// mBackButton.setImageDrawable(getRotatedImage(android.R.drawable.ic_menu_revert,
 			// 180));
-			params.setRotation(180);
 			Log.v("CameraActivity", "Orientation = 180");
 			break;
 		}
@@ -297,12 +435,26 @@ public class CameraActivity extends Activity {
 		mOrientationEventListener.disable();
 	}
 
+	@Override
+	public void onBackPressed() {
+		if (burst) {
+			finishBurst();
+		} else {
+			super.onBackPressed();
+		}
+	}
+
 	@Override
 	protected void onDestroy() {
+		destroyed = true;
+		if (analyzer != null) {
+			analyzer.stop();
+		}
 		if (mCamera != null) {
 			try {
 				mCamera.stopPreview();
-				mCamera.setPreviewCallback(null);
+				// Also drops a pending one-shot first frame callback.
+				mCamera.setPreviewCallbackWithBuffer(null);
 			} catch (Exception e) {
 				Log.d(TAG, "Exception stopping camera: " + e.getMessage());
 			}
@@ -312,6 +464,72 @@ public class CameraActivity extends Activity {
 		super.onDestroy();
 	}
 
+	/**
+	 * Choose the smallest picture size with the aspect ratio of the sensor
+	 * that still covers the target once scaled to fit it. The orientation of
+	 * the picture is not known yet, so the target is matched in the
+	 * orientation of each size, and a single target dimension must fit the
+	 * short side.
+	 * 
+	 * @param sizes
+	 *            The supported picture sizes, width, height pairs sorted by
+	 *            increasing area.
+	 * @param targetWidth
+	 *            -1 if unspecified
+	 * @param targetHeight
+	 *            -1 if unspecified
+	 * @return the offset of the chosen pair, the largest one if none is
+	 *         smaller and large enough, or -1 if there is none
+	 */
+	static int choosePictureSize(int[] sizes, int targetWidth, int targetHeight) {
+		int largest = sizes.length - 2;
+		if (largest < 0 || (targetWidth <= 0 && targetHeight <= 0)) {
+			return largest;
+		}
+		float aspect = getAspectRatio(sizes[largest], sizes[largest + 1]);
+		// The first match is the smallest.
+		for (int i = 0; i < largest; i += 2) {
+			if (Math.abs(getAspectRatio(sizes[i], sizes[i + 1]) - aspect) <= ASPECT_TOLERANCE && covers(sizes[i], sizes[i + 1], targetWidth, targetHeight)) {
+				return i;
+			}
+		}
+		return largest;
+	}
+
+	/**
+	 * @param width
+	 * @param height
+	 * @param targetWidth
+	 *            -1 if unspecified
+	 * @param targetHeight
+	 *            -1 if unspecified
+	 * @return true if an image of that size covers the target once scaled to
+	 *         fit it, in any orientation, false if there is no target
+	 */
+	static boolean covers(int width, int height, int targetWidth, int targetHeight) {
+		if (targetWidth <= 0 && targetHeight <= 0) {
+			return false;
+		}
+		float aspect = getAspectRatio(width, height);
+		int minShort;
+		if (targetWidth > 0 && targetHeight > 0) {
+			// Short side of the image scaled to fit the target box
+			int boxLong = Math.max(targetWidth, targetHeight);
+			int boxShort = Math.min(targetWidth, targetHeight);
+			minShort = aspect > (float) boxLong / boxShort ? (int) Math.ceil(boxLong / aspect) : boxShort;
+		} else {
+			minShort = Math.max(targetWidth, targetHeight);
+		}
+		return Math.min(width, height) >= minShort;
+	}
+
+	/**
+	 * @return the ratio of the long side to the short side
+	 */
+	private static float getAspectRatio(int width, int height) {
+		return (float) Math.max(width, height) / Math.min(width, height);
+	}
+
 	/** A safe way to get an instance of the Camera object. */
 	public static Camera getCameraInstance() {
 		Camera c = null;
@@ -324,47 +542,149 @@ public class CameraActivity extends Activity {
 		return c; // returns null if camera is unavailable
 	}
 
-	private PictureCallback mPicture = new PictureCallback() {
+	/**
+	 * @return the EXIF orientation of a picture taken in the current device
+	 *         orientation
+	 */
+	private int getExifOrientation() {
+		switch (mOrientation) {
+		case ORIENTATION_PORTRAIT_NORMAL:
+			return ExifInterface.ORIENTATION_ROTATE_90;
+		case ORIENTATION_LANDSCAPE_NORMAL:
+			return ExifInterface.ORIENTATION_NORMAL;
+		case ORIENTATION_PORTRAIT_INVERTED:
+			return ExifInterface.ORIENTATION_ROTATE_270;
+		case ORIENTATION_LANDSCAPE_INVERTED:
+			return ExifInterface.ORIENTATION_ROTATE_180;
+		default:
+			return ExifInterface.ORIENTATION_UNDEFINED;
+		}
+	}
 
-		public void onPictureTaken(byte[] data, Camera camera) {
+	/**
+	 * Take the picture from the next preview frame if fast capture is on and
+	 * the preview covers the target size.
+	 * 
+	 * @return false if the picture must be taken by the camera
+	 */
+	private boolean grabFrame() {
+		if (grabber == null || mPreview.getPreviewWidth() == 0 || !covers(mPreview.getPreviewWidth(), mPreview.getPreviewHeight(), targetWidth, targetHeight)) {
+			return false;
+		}
+		final int orientation = getExifOrientation();
+		final long start = System.nanoTime();
+		grabber.grab(new FrameGrabber.Callback() {
+			public void onFrameGrabbed(byte[] jpeg) {
+				deliverPicture(jpeg, orientation);
+				Log.d(TAG, "Grabbed preview frame in " + (System.nanoTime() - start) / 1000000 + " ms");
+				runOnUiThread(new Runnable() {
+					public void run() {
+						setResult(RESULT_OK);
+						pressed = false;
+						finish();
+					}
+				});
+			}
+		});
+		return true;
+	}
 
-			Uri fileUri = (Uri) getIntent().getExtras().get(MediaStore.EXTRA_OUTPUT);
+	/**
+	 * Hand the picture to the launcher in memory if it gave a token, else
+	 * write it to the EXTRA_OUTPUT file.
+	 * 
+	 * @param jpeg
+	 * @param orientation
+	 *            One of the ExifInterface ORIENTATION_ values.
+	 */
+	private void deliverPicture(byte[] jpeg, int orientation) {
+		String token = getIntent().getStringExtra(JpegHandoff.EXTRA_TOKEN);
+		if (token != null) {
+			JpegHandoff.put(token, jpeg, orientation);
+			return;
+		}
+		Uri fileUri = (Uri) getIntent().getExtras().get(MediaStore.EXTRA_OUTPUT);
 
-			File pictureFile = new File(fileUri.getPath());
+		// Written with its orientation by the I/O worker, the launcher
+		// waits for it.
+		JpegWriter.getInstance().write(jpeg, orientation, new File(fileUri.getPath()));
+	}
 
-			try {
-				FileOutputStream fos = new FileOutputStream(pictureFile);
-				fos.write(data);
-				fos.close();
-			} catch (FileNotFoundException e) {
-				Log.d(TAG, "File not found: " + e.getMessage());
-			} catch (IOException e) {
-				Log.d(TAG, "Error accessing file: " + e.getMessage());
-			}
+	/**
+	 * Tell the user if the last preview frame was blurry or badly exposed.
+	 */
+	private void warnAboutFrame() {
+		if (scorer == null) {
+			return;
+		}
+		String warning = null;
+		if (scorer.isBlurry()) {
+			warning = "The picture may be blurry";
+		} else if (scorer.isBadlyExposed()) {
+			warning = scorer.getExposure() < 128 ? "The picture may be too dark" : "The picture may be too bright";
+		}
+		if (warning != null) {
+			Log.d(TAG, warning + ", sharpness " + scorer.getSharpness() + ", exposure " + scorer.getExposure());
+			Toast.makeText(getApplicationContext(), warning, Toast.LENGTH_SHORT).show();
+		}
+	}
 
-			ExifInterface exif;
-			try {
-				exif = new ExifInterface(pictureFile.getAbsolutePath());
-				switch (mOrientation) {
-				case ORIENTATION_PORTRAIT_NORMAL:
-					// image.put(Media.ORIENTATION, 90);
-					exif.setAttribute(ExifInterface.TAG_ORIENTATION, String.valueOf(ExifInterface.ORIENTATION_ROTATE_90));
-					break;
-				case ORIENTATION_LANDSCAPE_NORMAL:
-					exif.setAttribute(ExifInterface.TAG_ORIENTATION, String.valueOf(ExifInterface.ORIENTATION_NORMAL));
-					break;
-				case ORIENTATION_PORTRAIT_INVERTED:
-					exif.setAttribute(ExifInterface.TAG_ORIENTATION, String.valueOf(ExifInterface.ORIENTATION_ROTATE_270));
-					break;
-				case ORIENTATION_LANDSCAPE_INVERTED:
-					exif.setAttribute(ExifInterface.TAG_ORIENTATION, String.valueOf(ExifInterface.ORIENTATION_ROTATE_180));
-					break;
-				}
-				exif.saveAttributes();
-			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
+	/**
+	 * Take the next picture of the burst, if a tap is pending or the button
+	 * is held and the previous picture is queued in the pipeline.
+	 */
+	private void captureNext() {
+		if (capturing || mCamera == null) {
+			return;
+		}
+		if (finishing) {
+			setResult(pipeline.getCount() > 0 ? RESULT_OK : RESULT_CANCELED);
+			finish();
+			return;
+		}
+		if (pendingShots == 0 && !holding) {
+			return;
+		}
+		if (pendingShots > 0) {
+			pendingShots--;
+		}
+		capturing = true;
+		// No autofocus between shots, the preview keeps the focus.
+		mCamera.takePicture(null, null, null, mBurstPicture);
+	}
+
+	/**
+	 * Stop the burst. The activity finishes once the picture being taken, if
+	 * any, is queued.
+	 */
+	private void finishBurst() {
+		finishing = true;
+		pendingShots = 0;
+		holding = false;
+		captureNext();
+	}
+
+	private PictureCallback mBurstPicture = new PictureCallback() {
+
+		public void onPictureTaken(byte[] data, Camera camera) {
+			if (!finishing) {
+				// The preview stops after each picture.
+				camera.startPreview();
 			}
+			// The next picture is taken once this one is queued.
+			if (!pipeline.put(data, getExifOrientation(), captureQueued)) {
+				capturing = false;
+				captureNext();
+			}
+		}
+
+	};
+
+	private PictureCallback mPicture = new PictureCallback() {
+
+		public void onPictureTaken(byte[] data, Camera camera) {
+
+			deliverPicture(data, getExifOrientation());
 
 			setResult(RESULT_OK);
 			pressed = false;
@@ -0,0 +1,186 @@
+package com.tuxpan.foregroundcameragalleryplugin;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import android.content.Context;
+import android.hardware.Camera;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * Supported picture and preview sizes of the back camera, as flat arrays of
+ * width, height pairs sorted by increasing area. They are read from the
+ * camera parameters once per device and kept in app storage, keyed by camera
+ * ID and build fingerprint, so later launches neither re-parse the parameter
+ * string nor query the sizes again. A system update changes the fingerprint
+ * and rebuilds them.
+ */
+public class CameraCapabilities {
+
+	private static final String TAG = "CameraCapabilities";
+
+	private static final String FILE_PREFIX = "camera-capabilities-";
+	private static final int VERSION = 1;
+
+	private static CameraCapabilities instance;
+
+	private final int cameraID;
+	private final String fingerprint;
+	private final int[] pictureSizes;
+	private final int[] previewSizes;
+
+	/**
+	 * Get the capabilities of the back camera, from memory, app storage, or
+	 * the parameters. Reads and writes files, so call it off the main thread
+	 * when possible.
+	 *
+	 * @param context
+	 * @param parameters
+	 *            The parameters of the opened back camera, only read if the
+	 *            capabilities are not stored yet.
+	 * @return the capabilities
+	 */
+	public static synchronized CameraCapabilities get(Context context, Camera.Parameters parameters) {
+		if (instance != null) {
+			return instance;
+		}
+		int cameraID = getBackCameraID();
+		File file = new File(context.getApplicationContext().getFilesDir(), FILE_PREFIX + cameraID);
+		CameraCapabilities capabilities = null;
+		if (file.exists()) {
+			try {
+				capabilities = read(file);
+			} catch (IOException e) {
+				Log.d(TAG, "Error reading " + file + ": " + e.getMessage());
+			}
+			if (capabilities != null && (capabilities.cameraID != cameraID || !capabilities.fingerprint.equals(Build.FINGERPRINT))) {
+				capabilities = null;
+			}
+		}
+		if (capabilities == null) {
+			capabilities = new CameraCapabilities(cameraID, Build.FINGERPRINT, toSortedArray(parameters.getSupportedPictureSizes()), toSortedArray(parameters.getSupportedPreviewSizes()));
+			try {
+				capabilities.write(file);
+			} catch (IOException e) {
+				Log.d(TAG, "Error writing " + file + ": " + e.getMessage());
+			}
+		}
+		instance = capabilities;
+		return instance;
+	}
+
+	CameraCapabilities(int cameraID, String fingerprint, int[] pictureSizes, int[] previewSizes) {
+		this.cameraID = cameraID;
+		this.fingerprint = fingerprint;
+		this.pictureSizes = pictureSizes;
+		this.previewSizes = previewSizes;
+	}
+
+	/**
+	 * @return width, height pairs sorted by increasing area, not to be
+	 *         modified
+	 */
+	public int[] getPictureSizes() {
+		return pictureSizes;
+	}
+
+	/**
+	 * @return width, height pairs sorted by increasing area, not to be
+	 *         modified
+	 */
+	public int[] getPreviewSizes() {
+		return previewSizes;
+	}
+
+	/**
+	 * @return the ID of the camera Camera.open() opens, the first back-facing
+	 *         one, or 0
+	 */
+	private static int getBackCameraID() {
+		Camera.CameraInfo info = new Camera.CameraInfo();
+		for (int i = 0; i < Camera.getNumberOfCameras(); i++) {
+			Camera.getCameraInfo(i, info);
+			if (info.facing == Camera.CameraInfo.CAMERA_FACING_BACK) {
+				return i;
+			}
+		}
+		return 0;
+	}
+
+	private static int[] toSortedArray(List<Camera.Size> sizes) {
+		if (sizes == null) {
+			return new int[0];
+		}
+		// Sort on area << 32 | index, then copy the pairs in that order.
+		long[] keys = new long[sizes.size()];
+		for (int i = 0; i < keys.length; i++) {
+			Camera.Size size = sizes.get(i);
+			keys[i] = ((long) size.width * size.height) << 32 | i;
+		}
+		Arrays.sort(keys);
+		int[] array = new int[keys.length * 2];
+		for (int i = 0; i < keys.length; i++) {
+			Camera.Size size = sizes.get((int) keys[i]);
+			array[2 * i] = size.width;
+			array[2 * i + 1] = size.height;
+		}
+		return array;
+	}
+
+	private static CameraCapabilities read(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if (in.readInt() != VERSION) {
+				return null;
+			}
+			int cameraID = in.readInt();
+			String fingerprint = in.readUTF();
+			return new CameraCapabilities(cameraID, fingerprint, readSizes(in), readSizes(in));
+		} finally {
+			in.close();
+		}
+	}
+
+	private static int[] readSizes(DataInputStream in) throws IOException {
+		int[] sizes = new int[in.readInt()];
+		for (int i = 0; i < sizes.length; i++) {
+			sizes[i] = in.readInt();
+		}
+		return sizes;
+	}
+
+	private void write(File file) throws IOException {
+		// Written aside and renamed, so a reader never sees a partial file.
+		File tmp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+		try {
+			out.writeInt(VERSION);
+			out.writeInt(cameraID);
+			out.writeUTF(fingerprint);
+			writeSizes(out, pictureSizes);
+			writeSizes(out, previewSizes);
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(file)) {
+			tmp.delete();
+			throw new IOException("Cannot rename " + tmp);
+		}
+	}
+
+	private static void writeSizes(DataOutputStream out, int[] sizes) throws IOException {
+		out.writeInt(sizes.length);
+		for (int size : sizes) {
+			out.writeInt(size);
+		}
+	}
+}
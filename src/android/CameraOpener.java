@@ -0,0 +1,149 @@
+package com.tuxpan.foregroundcameragalleryplugin;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import android.hardware.Camera;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * Opens and configures the camera on a dedicated thread, off the main
+ * thread. The thread has no Looper, so the callbacks of the camera are still
+ * delivered on the main thread. The camera can be pre-warmed, opened while the
+ * {@link CameraActivity} is being launched, and is then handed to the next
+ * {@link #open(Callback)}. A pre-warmed camera nobody claims is released after
+ * a few seconds.
+ */
+public class CameraOpener {
+
+	private static final String TAG = "CameraOpener";
+
+	// Time a pre-warmed camera is kept for the activity.
+	private static final int PREWARM_TIMEOUT = 5000;
+
+	private static CameraOpener instance;
+
+	private final ScheduledExecutorService executor;
+	private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+	// Only accessed on the opener thread.
+	private Camera prewarmed;
+	private Camera.Parameters prewarmedParameters;
+	private ScheduledFuture<?> expiry;
+
+	/**
+	 * Receives an opened camera.
+	 */
+	public interface Callback {
+		/**
+		 * Set up the camera, on the opener thread.
+		 *
+		 * @param camera
+		 * @param parameters
+		 *            The parameters of the camera, to be set by the callback.
+		 */
+		void configure(Camera camera, Camera.Parameters parameters);
+
+		/**
+		 * @param camera
+		 *            The configured camera, or null if it is not available.
+		 * @param parameters
+		 * @param prewarmed
+		 *            true if the camera was opened by {@link #prewarm()}
+		 */
+		void onOpened(Camera camera, Camera.Parameters parameters, boolean prewarmed);
+	}
+
+	public static synchronized CameraOpener getInstance() {
+		if (instance == null) {
+			instance = new CameraOpener();
+		}
+		return instance;
+	}
+
+	private CameraOpener() {
+		executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				return new Thread(r, "CameraOpener");
+			}
+		});
+	}
+
+	/**
+	 * Open the camera ahead of the next {@link #open(Callback)}.
+	 */
+	public void prewarm() {
+		executor.execute(new Runnable() {
+			public void run() {
+				if (prewarmed != null) {
+					return;
+				}
+				long start = System.nanoTime();
+				prewarmed = CameraActivity.getCameraInstance();
+				if (prewarmed == null) {
+					return;
+				}
+				prewarmedParameters = prewarmed.getParameters();
+				expiry = executor.schedule(new Runnable() {
+					public void run() {
+						Log.d(TAG, "Releasing unclaimed pre-warmed camera");
+						prewarmed.release();
+						prewarmed = null;
+						prewarmedParameters = null;
+					}
+				}, PREWARM_TIMEOUT, TimeUnit.MILLISECONDS);
+				Log.d(TAG, "Pre-warmed camera in " + (System.nanoTime() - start) / 1000000 + " ms");
+			}
+		});
+	}
+
+	/**
+	 * Open and configure the camera, or take the pre-warmed one.
+	 *
+	 * @param callback
+	 */
+	public void open(final Callback callback) {
+		executor.execute(new Runnable() {
+			public void run() {
+				long start = System.nanoTime();
+				final boolean warm = prewarmed != null;
+				Camera camera;
+				Camera.Parameters parameters = null;
+				if (warm) {
+					expiry.cancel(false);
+					camera = prewarmed;
+					parameters = prewarmedParameters;
+					prewarmed = null;
+					prewarmedParameters = null;
+				} else {
+					camera = CameraActivity.getCameraInstance();
+					if (camera != null) {
+						parameters = camera.getParameters();
+					}
+				}
+				if (camera != null) {
+					try {
+						callback.configure(camera, parameters);
+					} catch (RuntimeException e) {
+						Log.d(TAG, "Error configuring camera: " + e.getMessage());
+						camera.release();
+						camera = null;
+					}
+				}
+				Log.d(TAG, "Opened camera in " + (System.nanoTime() - start) / 1000000 + " ms, pre-warmed: " + warm);
+				final Camera opened = camera;
+				final Camera.Parameters openedParameters = parameters;
+				mainHandler.post(new Runnable() {
+					public void run() {
+						callback.onOpened(opened, openedParameters, warm);
+					}
+				});
+			}
+		});
+	}
+}
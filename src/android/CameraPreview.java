@@ -1,11 +1,8 @@
 package com.tuxpan.foregroundcameragalleryplugin;
 
-import java.util.List;
-
 import android.content.Context;
 import android.content.res.Configuration;
 import android.hardware.Camera;
-import android.hardware.Camera.Size;
 import android.util.Log;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
@@ -14,15 +11,27 @@ public class CameraPreview extends SurfaceView implements SurfaceHolder.Callback
 	private SurfaceHolder mHolder;
 	private Camera mCamera;
 	private final String TAG = "Preview";
-	private List<Camera.Size> mSupportedPreviewSizes;
-	private Camera.Size mPreviewSize;
-
-	public CameraPreview(Context context, Camera camera) {
+	private Camera.Parameters mParameters;
+	// Width, height pairs sorted by increasing area
+	private int[] mSupportedPreviewSizes;
+	private int mPreviewWidth;
+	private int mPreviewHeight;
+	private PreviewAnalyzer mAnalyzer;
+	private Runnable mFirstFrameCallback;
+
+	/**
+	 * @param context
+	 * @param camera
+	 * @param parameters
+	 *            The parameters of the camera, read once when it was opened
+	 *            and shared with the activity.
+	 * @param capabilities
+	 */
+	public CameraPreview(Context context, Camera camera, Camera.Parameters parameters, CameraCapabilities capabilities) {
 		super(context);
 		mCamera = camera;
-		mSupportedPreviewSizes = mCamera.getParameters().getSupportedPreviewSizes();
-		for (Camera.Size str : mSupportedPreviewSizes)
-			Log.e(TAG, str.width + "/" + str.height);
+		mParameters = parameters;
+		mSupportedPreviewSizes = capabilities.getPreviewSizes();
 		// Install a SurfaceHolder.Callback so we get notified when the
 		// underlying surface is created and destroyed.
 		mHolder = getHolder();
@@ -31,6 +40,38 @@ public class CameraPreview extends SurfaceView implements SurfaceHolder.Callback
 		mHolder.setType(SurfaceHolder.SURFACE_TYPE_PUSH_BUFFERS);
 	}
 
+	/**
+	 * Feed the preview frames to an analyzer, from the next preview start.
+	 * 
+	 * @param analyzer
+	 */
+	public void setAnalyzer(PreviewAnalyzer analyzer) {
+		mAnalyzer = analyzer;
+	}
+
+	/**
+	 * @return the width of the preview, 0 until measured
+	 */
+	public int getPreviewWidth() {
+		return mPreviewWidth;
+	}
+
+	/**
+	 * @return the height of the preview, 0 until measured
+	 */
+	public int getPreviewHeight() {
+		return mPreviewHeight;
+	}
+
+	/**
+	 * @param callback
+	 *            Run on the main thread when the first frame of the next
+	 *            preview start arrives.
+	 */
+	public void setFirstFrameCallback(Runnable callback) {
+		mFirstFrameCallback = callback;
+	}
+
 	public void surfaceCreated(SurfaceHolder holder) {
 	}
 
@@ -41,7 +82,7 @@ public class CameraPreview extends SurfaceView implements SurfaceHolder.Callback
 	public void surfaceChanged(SurfaceHolder holder, int format, int w, int h) {
 		// If your preview can change or rotate, take care of those events here.
 		// Make sure to stop the preview before resizing or reformatting it.
-		Log.e(TAG, "surfaceChanged => w=" + w + ", h=" + h);
+		Log.d(TAG, "surfaceChanged => w=" + w + ", h=" + h);
 
 		if (mHolder.getSurface() == null) {
 			// preview surface does not exist
@@ -60,11 +101,26 @@ public class CameraPreview extends SurfaceView implements SurfaceHolder.Callback
 
 		// start preview with new settings
 		try {
-			Camera.Parameters parameters = mCamera.getParameters();
-			parameters.setPreviewSize(mPreviewSize.width, mPreviewSize.height);
-			mCamera.setParameters(parameters);
+			mParameters.setPreviewSize(mPreviewWidth, mPreviewHeight);
+			mCamera.setParameters(mParameters);
 			mCamera.setDisplayOrientation(90);
 			mCamera.setPreviewDisplay(mHolder);
+			if (mAnalyzer != null) {
+				mAnalyzer.attach(mCamera, mPreviewWidth, mPreviewHeight);
+			}
+			if (mFirstFrameCallback != null) {
+				final Runnable callback = mFirstFrameCallback;
+				mFirstFrameCallback = null;
+				if (mAnalyzer != null) {
+					mAnalyzer.setFirstFrameCallback(callback);
+				} else {
+					mCamera.setOneShotPreviewCallback(new Camera.PreviewCallback() {
+						public void onPreviewFrame(byte[] data, Camera camera) {
+							callback.run();
+						}
+					});
+				}
+			}
 			mCamera.startPreview();
 
 		} catch (Exception e) {
@@ -88,43 +144,45 @@ public class CameraPreview extends SurfaceView implements SurfaceHolder.Callback
         final int height = resolveSize(getSuggestedMinimumHeight(), heightMeasureSpec);
         setMeasuredDimension(width, height);
 
-        if (mSupportedPreviewSizes != null) {
-           mPreviewSize = getBestPreviewSize(mSupportedPreviewSizes, width, height);
+        int best = getBestPreviewSize(mSupportedPreviewSizes, width, height);
+        if (best >= 0) {
+           mPreviewWidth = mSupportedPreviewSizes[best];
+           mPreviewHeight = mSupportedPreviewSizes[best + 1];
         }
 	}
 
-	private Camera.Size getBestPreviewSize(List<Camera.Size> sizes, int height, int width) {
+	/**
+	 * @return the offset of the best width, height pair in sizes, or -1 if
+	 *         there is none
+	 */
+	private int getBestPreviewSize(int[] sizes, int height, int width) {
 		final double ASPECT_TOLERANCE = 0.2;
 		double targetRatio = (double) height / width;
-		if (sizes == null)
-			return null;
 
-		Size optimalSize = null;
+		int optimalSize = -1;
 		double minDiff = Double.MAX_VALUE;
 
 		int targetHeight = height;
 
 		// Try to find an size match aspect ratio and size
-		for (Size size : sizes) {
-			
-			Log.d(TAG, "Checking size " + size.width + "w " + size.height + "h");
-			double ratio = (double) size.width / size.height;
+		for (int i = 0; i < sizes.length; i += 2) {
+			double ratio = (double) sizes[i] / sizes[i + 1];
 			if (Math.abs(ratio - targetRatio) > ASPECT_TOLERANCE)
 				continue;
-			if (Math.abs(size.height - targetHeight) < minDiff) {
-				optimalSize = size;
-				minDiff = Math.abs(size.height - targetHeight);
+			if (Math.abs(sizes[i + 1] - targetHeight) < minDiff) {
+				optimalSize = i;
+				minDiff = Math.abs(sizes[i + 1] - targetHeight);
 			}
 		}
 
 		// Cannot find the one match the aspect ratio, ignore the
 		// requirement
-		if (optimalSize == null) {
+		if (optimalSize < 0) {
 			minDiff = Double.MAX_VALUE;
-			for (Size size : sizes) {
-				if (Math.abs(size.height - targetHeight) < minDiff) {
-					optimalSize = size;
-					minDiff = Math.abs(size.height - targetHeight);
+			for (int i = 0; i < sizes.length; i += 2) {
+				if (Math.abs(sizes[i + 1] - targetHeight) < minDiff) {
+					optimalSize = i;
+					minDiff = Math.abs(sizes[i + 1] - targetHeight);
 				}
 			}
 		}
@@ -0,0 +1,100 @@
+package com.tuxpan.foregroundcameragalleryplugin;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Date sections of an {@link ImageIndex}: the first position of every month,
+ * or of every day for libraries that span less than a few months, computed
+ * from DATE_TAKEN in one pass over the index. The calendar is only consulted
+ * when an image falls out of the current section.
+ */
+public class DateSections {
+
+	// Below this many month sections, the sections are days.
+	private static final int MIN_MONTH_SECTIONS = 3;
+
+	private final int[] positions;
+	private final String[] labels;
+
+	private DateSections(int[] positions, String[] labels) {
+		this.positions = positions;
+		this.labels = labels;
+	}
+
+	/**
+	 * @param index
+	 *            A complete index, newest first.
+	 * @return the sections of the index
+	 */
+	static DateSections build(ImageIndex index) {
+		DateSections months = build(index, false);
+		return months.labels.length < MIN_MONTH_SECTIONS ? build(index, true) : months;
+	}
+
+	private static DateSections build(ImageIndex index, boolean byDay) {
+		SimpleDateFormat format = new SimpleDateFormat(byDay ? "d MMM yyyy" : "MMM yyyy", Locale.getDefault());
+		Calendar calendar = Calendar.getInstance();
+		int[] positions = new int[16];
+		List<String> labels = new ArrayList<String>();
+		long sectionStart = Long.MAX_VALUE;
+		long sectionEnd = Long.MIN_VALUE;
+		int size = index.size();
+		for (int position = 0; position < size; position++) {
+			long dateTaken = index.getDateTaken(position);
+			if (dateTaken >= sectionStart && dateTaken < sectionEnd) {
+				continue;
+			}
+			calendar.setTimeInMillis(dateTaken);
+			calendar.set(Calendar.HOUR_OF_DAY, 0);
+			calendar.set(Calendar.MINUTE, 0);
+			calendar.set(Calendar.SECOND, 0);
+			calendar.set(Calendar.MILLISECOND, 0);
+			if (!byDay) {
+				calendar.set(Calendar.DAY_OF_MONTH, 1);
+			}
+			sectionStart = calendar.getTimeInMillis();
+			calendar.add(byDay ? Calendar.DAY_OF_MONTH : Calendar.MONTH, 1);
+			sectionEnd = calendar.getTimeInMillis();
+
+			if (labels.size() == positions.length) {
+				positions = Arrays.copyOf(positions, positions.length * 2);
+			}
+			positions[labels.size()] = position;
+			labels.add(format.format(new Date(sectionStart)));
+		}
+		return new DateSections(Arrays.copyOf(positions, labels.size()), labels.toArray(new String[labels.size()]));
+	}
+
+	/**
+	 * @return the section labels, for the fast scroller
+	 */
+	public String[] getLabels() {
+		return labels;
+	}
+
+	/**
+	 * @param section
+	 * @return the first position of the section
+	 */
+	public int getPosition(int section) {
+		if (positions.length == 0) {
+			return 0;
+		}
+		return positions[Math.max(0, Math.min(section, positions.length - 1))];
+	}
+
+	/**
+	 * @param position
+	 * @return the section of the position
+	 */
+	public int getSection(int position) {
+		int i = Arrays.binarySearch(positions, position);
+		return Math.max(0, i >= 0 ? i : -i - 2);
+	}
+}
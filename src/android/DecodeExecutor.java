@@ -0,0 +1,272 @@
+package com.tuxpan.foregroundcameragalleryplugin;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+/**
+ * Bounded pool of thumbnail decode threads, one per core. Pending decodes are
+ * served by priority: the visible cells first, then the prefetch window, then
+ * any background fill. Requests for the same image _ID share one decode, and
+ * a decode nobody waits for anymore is dropped before it starts.
+ *
+ * Decoded thumbnails are put in the {@link ThumbnailCache} and then handed to
+ * the listeners on the main thread.
+ */
+public class DecodeExecutor {
+
+	public static final int PRIORITY_VISIBLE = 0;
+	public static final int PRIORITY_PREFETCH = 1;
+	public static final int PRIORITY_BACKGROUND = 2;
+
+	private static final int KEEP_ALIVE_SECONDS = 10;
+
+	/**
+	 * Produces the thumbnail of an image. Called on decode threads.
+	 */
+	public interface Decoder {
+		Bitmap decode(int imageID, long dateModified);
+	}
+
+	/**
+	 * Receives decoded thumbnails on the main thread.
+	 */
+	public interface Listener {
+		void onDecoded(int imageID, Drawable thumbnail);
+	}
+
+	private static DecodeExecutor instance;
+
+	private final Decoder decoder;
+	private final ThumbnailCache cache;
+	private final ThreadPoolExecutor executor;
+	private final Handler mainHandler = new Handler(Looper.getMainLooper());
+	private final Map<Integer, Task> pending = new HashMap<Integer, Task>();
+	private long sequence;
+
+	// Throughput counters
+	private int submitted;
+	private int deduplicated;
+	private int cancelled;
+	private int completed;
+	private int active;
+	private int maxActive;
+	private long decodeNanos;
+	private long busyNanos;
+	private long busySince;
+
+	/**
+	 * Get the executor shared by every thumbnail consumer of the process.
+	 *
+	 * @param context
+	 * @return the shared executor
+	 */
+	public static synchronized DecodeExecutor getInstance(Context context) {
+		if (instance == null) {
+			ThumbnailCache cache = ThumbnailCache.getInstance(context);
+			instance = new DecodeExecutor(new ThumbnailDecoder(context, cache.getConfig()), cache, Runtime.getRuntime().availableProcessors());
+		}
+		return instance;
+	}
+
+	DecodeExecutor(Decoder decoder, ThumbnailCache cache, int threads) {
+		this.decoder = decoder;
+		this.cache = cache;
+		executor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+			private int count;
+
+			public Thread newThread(final Runnable r) {
+				return new Thread(new Runnable() {
+					public void run() {
+						Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+						r.run();
+					}
+				}, "DecodeExecutor-" + (++count));
+			}
+		});
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Request the thumbnail of an image. If the image is already pending, the
+	 * listener joins that decode, whose priority is raised if needed.
+	 *
+	 * @param imageID
+	 * @param dateModified
+	 * @param priority
+	 *            One of the PRIORITY_ constants.
+	 * @param listener
+	 *            Notified on the main thread, may be null.
+	 */
+	public synchronized void submit(int imageID, long dateModified, int priority, Listener listener) {
+		submitted++;
+		Task task = pending.get(imageID);
+		if (task != null) {
+			deduplicated++;
+			if (listener != null && !task.listeners.contains(listener)) {
+				task.listeners.add(listener);
+			}
+			if (priority < task.priority && executor.getQueue().remove(task)) {
+				task.priority = priority;
+				task.sequence = sequence++;
+				executor.execute(task);
+			}
+			return;
+		}
+		task = new Task(imageID, dateModified, priority, sequence++);
+		if (listener != null) {
+			task.listeners.add(listener);
+		}
+		pending.put(imageID, task);
+		executor.execute(task);
+	}
+
+	/**
+	 * Withdraw a listener from the decode of an image. Once the last listener
+	 * is gone, a decode that has not started yet is dropped.
+	 *
+	 * @param imageID
+	 * @param listener
+	 */
+	public synchronized void cancel(int imageID, Listener listener) {
+		Task task = pending.get(imageID);
+		if (task == null) {
+			return;
+		}
+		task.listeners.remove(listener);
+		if (task.listeners.isEmpty() && executor.getQueue().remove(task)) {
+			pending.remove(imageID);
+			cancelled++;
+		}
+	}
+
+	/**
+	 * Withdraw a listener from every decode it waits for.
+	 *
+	 * @param listener
+	 */
+	public synchronized void cancelAll(Listener listener) {
+		for (Task task : new ArrayList<Task>(pending.values())) {
+			if (task.listeners.contains(listener)) {
+				cancel(task.imageID, listener);
+			}
+		}
+	}
+
+	/**
+	 * @return true if a decode of the image is queued or running
+	 */
+	public synchronized boolean isPending(int imageID) {
+		return pending.containsKey(imageID);
+	}
+
+	public synchronized int getCompletedCount() {
+		return completed;
+	}
+
+	public synchronized int getCancelledCount() {
+		return cancelled;
+	}
+
+	/**
+	 * @return decoded thumbnails per second of wall time with at least one
+	 *         decode running
+	 */
+	public synchronized double getThroughput() {
+		long busy = busyNanos + (active > 0 ? System.nanoTime() - busySince : 0);
+		return busy == 0 ? 0 : completed * 1e9 / busy;
+	}
+
+	/**
+	 * @return average number of decodes running at once while busy, which
+	 *         approaches the thread count when decoding scales
+	 */
+	public synchronized double getParallelism() {
+		long busy = busyNanos + (active > 0 ? System.nanoTime() - busySince : 0);
+		return busy == 0 ? 0 : decodeNanos / (double) busy;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "DecodeExecutor[threads=" + executor.getMaximumPoolSize() + ", submitted=" + submitted + ", deduplicated=" + deduplicated + ", cancelled=" + cancelled + ", completed=" + completed
+				+ ", maxActive=" + maxActive + ", throughput=" + String.format("%.1f", getThroughput()) + "/s, parallelism=" + String.format("%.2f", getParallelism()) + "]";
+	}
+
+	private synchronized void started() {
+		if (active++ == 0) {
+			busySince = System.nanoTime();
+		}
+		maxActive = Math.max(maxActive, active);
+	}
+
+	private synchronized List<Listener> finished(Task task, long nanos) {
+		if (--active == 0) {
+			busyNanos += System.nanoTime() - busySince;
+		}
+		completed++;
+		decodeNanos += nanos;
+		pending.remove(task.imageID);
+		return new ArrayList<Listener>(task.listeners);
+	}
+
+	/**
+	 * Decode of one image.
+	 */
+	private class Task implements Runnable, Comparable<Task> {
+		final int imageID;
+		final long dateModified;
+		final List<Listener> listeners = new ArrayList<Listener>(1);
+		int priority;
+		long sequence;
+
+		Task(int imageID, long dateModified, int priority, long sequence) {
+			this.imageID = imageID;
+			this.dateModified = dateModified;
+			this.priority = priority;
+			this.sequence = sequence;
+		}
+
+		public void run() {
+			started();
+			long start = System.nanoTime();
+			Bitmap bitmap = null;
+			try {
+				bitmap = decoder.decode(imageID, dateModified);
+			} finally {
+				final List<Listener> listeners = finished(this, System.nanoTime() - start);
+				// The cached thumbnail stays retained until the listeners got
+				// it, should the cache evict it meanwhile.
+				final Drawable thumbnail = bitmap != null ? cache.put(imageID, bitmap) : null;
+				if (thumbnail != null) {
+					mainHandler.post(new Runnable() {
+						public void run() {
+							for (Listener listener : listeners) {
+								listener.onDecoded(imageID, thumbnail);
+							}
+							cache.release(thumbnail);
+						}
+					});
+				}
+			}
+		}
+
+		public int compareTo(Task other) {
+			if (priority != other.priority) {
+				return priority < other.priority ? -1 : 1;
+			}
+			return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+		}
+	}
+}
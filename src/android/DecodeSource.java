@@ -0,0 +1,179 @@
+package com.tuxpan.foregroundcameragalleryplugin;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+
+/**
+ * An image to decode several times, for its bounds and then its pixels, from
+ * a single open of its URI. A file stream, which content:// URIs of local
+ * files also give, is rewound through its file descriptor; other streams are
+ * buffered and reset to the mark they get at the start. The source is only
+ * opened again if it cannot be rewound. Opens and bytes read are counted.
+ * Plain Java, so it runs on any JVM.
+ */
+public class DecodeSource implements Closeable {
+
+	// Bytes a bounds decode may read before a buffered stream can no longer be
+	// reset, enough for the markers of a JPEG with its EXIF thumbnail.
+	static final int MARK_LIMIT = 256 * 1024;
+
+	/**
+	 * Opens the image.
+	 */
+	public interface Opener {
+		InputStream open() throws IOException;
+	}
+
+	private final Opener opener;
+	private InputStream stream;
+	private FileChannel channel;
+	private int openCount;
+	private long bytesRead;
+
+	public DecodeSource(Opener opener) {
+		this.opener = opener;
+	}
+
+	/**
+	 * @param data
+	 * @return a source reading an image held in memory
+	 */
+	public static DecodeSource fromBytes(final byte[] data) {
+		return new DecodeSource(new Opener() {
+			public InputStream open() {
+				return new ByteArrayInputStream(data);
+			}
+		});
+	}
+
+	/**
+	 * @return a stream at the start of the image, valid until the next call
+	 * @throws IOException
+	 */
+	public InputStream rewind() throws IOException {
+		if (stream != null) {
+			try {
+				if (channel != null) {
+					channel.position(0);
+				} else {
+					stream.reset();
+				}
+				return stream;
+			} catch (IOException e) {
+				// Not seekable, or read past the mark
+				close();
+			}
+		}
+		InputStream raw = opener.open();
+		if (raw == null) {
+			throw new IOException("Cannot open image");
+		}
+		openCount++;
+		InputStream counted = new CountingInputStream(raw);
+		if (raw instanceof FileInputStream) {
+			channel = ((FileInputStream) raw).getChannel();
+			stream = counted;
+		} else if (raw instanceof ByteArrayInputStream) {
+			// Already in memory, reset() goes back to the start.
+			stream = counted;
+		} else {
+			stream = new MarkedInputStream(counted);
+			stream.mark(MARK_LIMIT);
+		}
+		return stream;
+	}
+
+	/**
+	 * @return the number of times the image was opened
+	 */
+	public int getOpenCount() {
+		return openCount;
+	}
+
+	/**
+	 * @return the number of bytes read from the opened streams
+	 */
+	public long getBytesRead() {
+		return bytesRead;
+	}
+
+	public void close() {
+		if (stream != null) {
+			try {
+				stream.close();
+			} catch (IOException e) {
+				// Nothing to do
+			}
+			stream = null;
+			channel = null;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "DecodeSource[opens=" + openCount + ", bytes=" + bytesRead + "]";
+	}
+
+	/**
+	 * Counts the bytes read from the underlying stream.
+	 */
+	private class CountingInputStream extends FilterInputStream {
+
+		CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b >= 0) {
+				bytesRead++;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if (n > 0) {
+				bytesRead += n;
+			}
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(n);
+			bytesRead += skipped;
+			return skipped;
+		}
+
+		@Override
+		public void reset() throws IOException {
+			// Only a ByteArrayInputStream is reset directly, to its start.
+			in.reset();
+		}
+	}
+
+	/**
+	 * Keeps its mark at the start even if the decoder marks again with a
+	 * smaller limit.
+	 */
+	private static class MarkedInputStream extends BufferedInputStream {
+
+		MarkedInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public synchronized void mark(int readlimit) {
+			super.mark(Math.max(readlimit, MARK_LIMIT));
+		}
+	}
+}
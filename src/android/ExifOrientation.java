@@ -0,0 +1,163 @@
+package com.tuxpan.foregroundcameragalleryplugin;
+
+/**
+ * Sets the EXIF orientation of a JPEG held in memory, so that it can be
+ * written to disk once instead of being written, reopened and rewritten. The
+ * orientation is patched in place when the EXIF data already has the tag, and
+ * a minimal EXIF segment is spliced in after SOI when the JPEG has no EXIF
+ * data at all.
+ */
+public class ExifOrientation {
+
+	private static final int MARKER_SOI = 0xD8;
+	private static final int MARKER_EOI = 0xD9;
+	private static final int MARKER_SOS = 0xDA;
+	private static final int MARKER_APP1 = 0xE1;
+
+	private static final int TAG_ORIENTATION = 0x0112;
+	private static final int TYPE_SHORT = 3;
+	private static final int IFD_ENTRY_LENGTH = 12;
+	private static final byte[] EXIF_HEADER = { 'E', 'x', 'i', 'f', 0, 0 };
+
+	/**
+	 * @param jpeg
+	 *            The JPEG, patched in place when possible.
+	 * @param orientation
+	 *            One of the ExifInterface ORIENTATION_ values.
+	 * @return null if the orientation was patched in place, a segment to
+	 *         write after the SOI marker if the JPEG has no EXIF data, or an
+	 *         empty array if the EXIF data has no orientation tag to patch
+	 */
+	public static byte[] splice(byte[] jpeg, int orientation) {
+		int tiff = findTiffHeader(jpeg);
+		if (tiff < 0) {
+			return createSegment(orientation);
+		}
+		return setOrientation(jpeg, tiff, orientation) ? null : new byte[0];
+	}
+
+	/**
+	 * Copy the EXIF segment of a JPEG for another encoding of the same image.
+	 * The thumbnail (IFD1) is unlinked since it may no longer match.
+	 *
+	 * @param jpeg
+	 * @param orientation
+	 *            The orientation of the copy, one of the ExifInterface
+	 *            ORIENTATION_ values.
+	 * @return the APP1 segment to write after the SOI marker, a minimal one
+	 *         with only the orientation if the JPEG has no EXIF data or no
+	 *         orientation tag
+	 */
+	public static byte[] copySegment(byte[] jpeg, int orientation) {
+		int tiff = findTiffHeader(jpeg);
+		if (tiff < 0) {
+			return createSegment(orientation);
+		}
+		int start = tiff - EXIF_HEADER.length - 4;
+		int length = ((jpeg[start + 2] & 0xFF) << 8) | (jpeg[start + 3] & 0xFF);
+		if (start + 2 + length > jpeg.length) {
+			return createSegment(orientation);
+		}
+		byte[] segment = new byte[2 + length];
+		System.arraycopy(jpeg, start, segment, 0, segment.length);
+		tiff -= start;
+		if (!setOrientation(segment, tiff, orientation)) {
+			return createSegment(orientation);
+		}
+		boolean littleEndian = segment[tiff] == 'I';
+		int ifd0 = tiff + readInt(segment, tiff + 4, littleEndian);
+		int next = ifd0 + 2 + readShort(segment, ifd0, littleEndian) * IFD_ENTRY_LENGTH;
+		if (next + 4 <= segment.length) {
+			segment[next] = segment[next + 1] = segment[next + 2] = segment[next + 3] = 0;
+		}
+		return segment;
+	}
+
+	/**
+	 * @return the offset of the TIFF header of the EXIF segment, or -1 if there
+	 *         is none before the image data
+	 */
+	private static int findTiffHeader(byte[] jpeg) {
+		if (jpeg.length < 4 || (jpeg[0] & 0xFF) != 0xFF || (jpeg[1] & 0xFF) != MARKER_SOI) {
+			return -1;
+		}
+		int offset = 2;
+		while (offset + 4 <= jpeg.length && (jpeg[offset] & 0xFF) == 0xFF) {
+			int marker = jpeg[offset + 1] & 0xFF;
+			if (marker == 0xFF) {
+				// Fill byte
+				offset++;
+				continue;
+			}
+			if (marker == MARKER_SOS || marker == MARKER_EOI) {
+				return -1;
+			}
+			int length = ((jpeg[offset + 2] & 0xFF) << 8) | (jpeg[offset + 3] & 0xFF);
+			int content = offset + 4;
+			if (marker == MARKER_APP1 && content + EXIF_HEADER.length + 8 <= jpeg.length && startsWith(jpeg, content, EXIF_HEADER)) {
+				return content + EXIF_HEADER.length;
+			}
+			offset += 2 + length;
+		}
+		return -1;
+	}
+
+	private static boolean setOrientation(byte[] jpeg, int tiff, int orientation) {
+		boolean littleEndian = jpeg[tiff] == 'I';
+		try {
+			int ifd0 = tiff + readInt(jpeg, tiff + 4, littleEndian);
+			int count = readShort(jpeg, ifd0, littleEndian);
+			for (int i = 0; i < count; i++) {
+				int entry = ifd0 + 2 + i * IFD_ENTRY_LENGTH;
+				if (readShort(jpeg, entry, littleEndian) == TAG_ORIENTATION && readShort(jpeg, entry + 2, littleEndian) == TYPE_SHORT) {
+					// A single SHORT is left-aligned in the value field.
+					jpeg[entry + 8 + (littleEndian ? 0 : 1)] = (byte) orientation;
+					jpeg[entry + 8 + (littleEndian ? 1 : 0)] = 0;
+					return true;
+				}
+			}
+		} catch (ArrayIndexOutOfBoundsException e) {
+			// Offsets pointing out of the JPEG
+		}
+		return false;
+	}
+
+	/**
+	 * @return an APP1 segment with an IFD0 holding only the orientation
+	 */
+	private static byte[] createSegment(int orientation) {
+		byte[] tiff = { 'M', 'M', 0, 42, 0, 0, 0, 8,
+				// IFD0: one entry, the orientation SHORT, then no IFD1
+				0, 1, (byte) (TAG_ORIENTATION >> 8), (byte) TAG_ORIENTATION, 0, TYPE_SHORT, 0, 0, 0, 1, 0, (byte) orientation, 0, 0, 0, 0, 0, 0 };
+		int length = 2 + EXIF_HEADER.length + tiff.length;
+		byte[] segment = new byte[2 + length];
+		segment[0] = (byte) 0xFF;
+		segment[1] = (byte) MARKER_APP1;
+		segment[2] = (byte) (length >> 8);
+		segment[3] = (byte) length;
+		System.arraycopy(EXIF_HEADER, 0, segment, 4, EXIF_HEADER.length);
+		System.arraycopy(tiff, 0, segment, 4 + EXIF_HEADER.length, tiff.length);
+		return segment;
+	}
+
+	private static boolean startsWith(byte[] data, int offset, byte[] prefix) {
+		for (int i = 0; i < prefix.length; i++) {
+			if (data[offset + i] != prefix[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int readShort(byte[] data, int offset, boolean littleEndian) {
+		int b0 = data[offset] & 0xFF;
+		int b1 = data[offset + 1] & 0xFF;
+		return littleEndian ? (b1 << 8) | b0 : (b0 << 8) | b1;
+	}
+
+	private static int readInt(byte[] data, int offset, boolean littleEndian) {
+		int s0 = readShort(data, offset, littleEndian);
+		int s1 = readShort(data, offset + 2, littleEndian);
+		return littleEndian ? (s1 << 16) | s0 : (s0 << 16) | s1;
+	}
+}
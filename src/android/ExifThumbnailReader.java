@@ -0,0 +1,180 @@
+package com.tuxpan.foregroundcameragalleryplugin;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the JPEG thumbnail that cameras embed in the EXIF (APP1) segment of
+ * their pictures, usually 160x120. Only the markers before the image data are
+ * scanned, a few KB of I/O, and nothing is decoded. Plain Java, so it runs on
+ * any JVM.
+ */
+public class ExifThumbnailReader {
+
+	private static final int MARKER_SOI = 0xD8;
+	private static final int MARKER_EOI = 0xD9;
+	private static final int MARKER_SOS = 0xDA;
+	private static final int MARKER_APP1 = 0xE1;
+
+	private static final int TAG_JPEG_INTERCHANGE_FORMAT = 0x0201;
+	private static final int TAG_JPEG_INTERCHANGE_FORMAT_LENGTH = 0x0202;
+
+	// "Exif\0\0" header of the APP1 segment, before the TIFF header.
+	private static final int EXIF_HEADER_LENGTH = 6;
+	private static final int IFD_ENTRY_LENGTH = 12;
+
+	private final byte[] segment;
+	private final boolean littleEndian;
+
+	private ExifThumbnailReader(byte[] segment, boolean littleEndian) {
+		this.segment = segment;
+		this.littleEndian = littleEndian;
+	}
+
+	/**
+	 * @param path
+	 *            A JPEG file.
+	 * @return the bytes of the embedded JPEG thumbnail, or null if there is
+	 *         none
+	 * @throws IOException
+	 */
+	public static byte[] read(String path) throws IOException {
+		InputStream in = new BufferedInputStream(new FileInputStream(path));
+		try {
+			return read(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * @param input
+	 *            A JPEG stream, read up to the EXIF segment at most.
+	 * @return the bytes of the embedded JPEG thumbnail, or null if there is
+	 *         none
+	 * @throws IOException
+	 */
+	public static byte[] read(InputStream input) throws IOException {
+		DataInputStream in = new DataInputStream(input);
+		if (in.readUnsignedByte() != 0xFF || in.readUnsignedByte() != MARKER_SOI) {
+			return null;
+		}
+		while (true) {
+			if (in.readUnsignedByte() != 0xFF) {
+				return null;
+			}
+			int marker;
+			do {
+				// Markers may be preceded by any number of fill bytes.
+				marker = in.readUnsignedByte();
+			} while (marker == 0xFF);
+			if (marker == MARKER_SOS || marker == MARKER_EOI) {
+				return null;
+			}
+			int length = in.readUnsignedShort() - 2;
+			if (length < 0) {
+				return null;
+			}
+			if (marker == MARKER_APP1) {
+				byte[] segment = new byte[length];
+				in.readFully(segment);
+				byte[] thumbnail = parse(segment);
+				// Other APP1 segments, such as XMP, may come first.
+				if (thumbnail != null) {
+					return thumbnail;
+				}
+			} else {
+				skipFully(in, length);
+			}
+		}
+	}
+
+	/**
+	 * @param segment
+	 *            Content of an APP1 segment.
+	 * @return the thumbnail of IFD1, or null if it is not an EXIF segment or
+	 *         it has no JPEG thumbnail
+	 */
+	static byte[] parse(byte[] segment) {
+		if (segment.length < EXIF_HEADER_LENGTH + 8 || segment[0] != 'E' || segment[1] != 'x' || segment[2] != 'i' || segment[3] != 'f' || segment[4] != 0 || segment[5] != 0) {
+			return null;
+		}
+		int tiff = EXIF_HEADER_LENGTH;
+		boolean littleEndian;
+		if (segment[tiff] == 'I' && segment[tiff + 1] == 'I') {
+			littleEndian = true;
+		} else if (segment[tiff] == 'M' && segment[tiff + 1] == 'M') {
+			littleEndian = false;
+		} else {
+			return null;
+		}
+		return new ExifThumbnailReader(segment, littleEndian).readThumbnail(tiff);
+	}
+
+	private byte[] readThumbnail(int tiff) {
+		try {
+			if (readShort(tiff + 2) != 42) {
+				return null;
+			}
+			// IFD0 holds the main image tags, the thumbnail is in IFD1.
+			int ifd0 = tiff + readInt(tiff + 4);
+			int next = readInt(ifd0 + 2 + readShort(ifd0) * IFD_ENTRY_LENGTH);
+			if (next <= 0) {
+				return null;
+			}
+			int ifd1 = tiff + next;
+			int offset = -1;
+			int length = -1;
+			int count = readShort(ifd1);
+			for (int i = 0; i < count; i++) {
+				int entry = ifd1 + 2 + i * IFD_ENTRY_LENGTH;
+				int tag = readShort(entry);
+				if (tag == TAG_JPEG_INTERCHANGE_FORMAT) {
+					offset = readInt(entry + 8);
+				} else if (tag == TAG_JPEG_INTERCHANGE_FORMAT_LENGTH) {
+					length = readInt(entry + 8);
+				}
+			}
+			int start = tiff + offset;
+			if (offset <= 0 || length <= 2 || start + length > segment.length || start + length < start) {
+				return null;
+			}
+			if ((segment[start] & 0xFF) != 0xFF || (segment[start + 1] & 0xFF) != MARKER_SOI) {
+				return null;
+			}
+			byte[] thumbnail = new byte[length];
+			System.arraycopy(segment, start, thumbnail, 0, length);
+			return thumbnail;
+		} catch (ArrayIndexOutOfBoundsException e) {
+			// Offsets pointing out of the segment
+			return null;
+		}
+	}
+
+	private int readShort(int offset) {
+		int b0 = segment[offset] & 0xFF;
+		int b1 = segment[offset + 1] & 0xFF;
+		return littleEndian ? (b1 << 8) | b0 : (b0 << 8) | b1;
+	}
+
+	private int readInt(int offset) {
+		int s0 = readShort(offset);
+		int s1 = readShort(offset + 2);
+		return littleEndian ? (s1 << 16) | s0 : (s0 << 16) | s1;
+	}
+
+	private static void skipFully(DataInputStream in, int length) throws IOException {
+		while (length > 0) {
+			int skipped = in.skipBytes(length);
+			if (skipped <= 0) {
+				// skipBytes may stop early, read to tell EOF apart
+				in.readUnsignedByte();
+				skipped = 1;
+			}
+			length -= skipped;
+		}
+	}
+}
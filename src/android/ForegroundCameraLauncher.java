@@ -24,15 +24,22 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
-import java.lang.ref.WeakReference;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.cordova.CallbackContext;
+import org.apache.cordova.CordovaInterface;
 import org.apache.cordova.CordovaPlugin;
+import org.apache.cordova.CordovaWebView;
 import org.apache.cordova.LOG;
 import org.apache.cordova.PluginResult;
 import org.json.JSONArray;
 import org.json.JSONException;
+import org.json.JSONObject;
 
 import android.app.Activity;
 import android.content.ContentValues;
@@ -41,14 +48,20 @@ import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.CompressFormat;
 import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
 import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.RectF;
+import android.media.ExifInterface;
 import android.media.MediaScannerConnection;
 import android.media.MediaScannerConnection.MediaScannerConnectionClient;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.Bundle;
 import android.os.Environment;
+import android.os.SystemClock;
 import android.provider.MediaStore;
-import android.util.Base64;
 import android.util.Log;
 
 /**
@@ -78,14 +91,25 @@ public class ForegroundCameraLauncher extends CordovaPlugin implements MediaScan
 
     private static final String LOG_TAG = "ForegroundCameraLauncher";
 
+    private static final String PREWARM_PREFERENCE = "galleryprewarm";  // config.xml <preference name="GalleryPrewarm" value="true" />
+    private static final String ATLAS_PREFERENCE = "galleryatlas";      // config.xml <preference name="GalleryAtlas" value="true" />
+    private static final String ANALYSIS_PREFERENCE = "previewanalysis"; // config.xml <preference name="PreviewAnalysis" value="true" />
+    private static final String CAMERA_PREWARM_PREFERENCE = "cameraprewarm"; // config.xml <preference name="CameraPrewarm" value="true" />
+    private static final int PREWARM_THUMBNAILS = 60;   // About three screens of the gallery grid
+    private static final int PIPELINE_THREADS = 2;      // Picked images processed at once in multi-select mode
+
     private int mQuality;                   // Compression quality hint (0-100: 0=low quality & high compression, 100=compress of max quality)
     private int targetWidth;                // desired width of the image
     private int targetHeight;               // desired height of the image
     private Uri imageUri;                   // Uri of captured image
+    private String handoffToken;            // Token of the captured image handed over in memory
     private int encodingType;               // Type of encoding to use
     private int mediaType;                  // What type of media to retrieve
     private boolean saveToPhotoAlbum;       // Should the picture be saved to the device's photo album
     private boolean correctOrientation;     // Should the pictures orientation be corrected
+    private boolean selectMultiple;         // Should the photo library pick several images
+    private boolean burst;                  // Should the camera take pictures until cancelled
+    private boolean fastCapture;            // Should the camera take the picture from the preview when large enough
     //private boolean allowEdit;              // Should we allow the user to crop the image. UNUSED.
 
     public CallbackContext callbackContext;
@@ -94,6 +118,38 @@ public class ForegroundCameraLauncher extends CordovaPlugin implements MediaScan
     private MediaScannerConnection conn;    // Used to update gallery app with newly-written files
     private Uri scanMe;                     // Uri of image to be added to content store
 
+    /**
+     * Selects the RGB_565 atlas storage of the gallery thumbnails if the GalleryAtlas preference is set,
+     * and pre-warms the gallery in the background if the GalleryPrewarm preference is set.
+     *
+     * @param cordova           The context of the main Activity.
+     * @param webView           The CordovaWebView Cordova is running in.
+     */
+    @Override
+    public void initialize(CordovaInterface cordova, CordovaWebView webView) {
+        super.initialize(cordova, webView);
+        ThumbnailCache.setAtlasEnabled(getBooleanPreference(ATLAS_PREFERENCE));
+        if (getBooleanPreference(PREWARM_PREFERENCE)) {
+            ImageLibrary.getInstance(cordova.getActivity()).prewarm(PREWARM_THUMBNAILS);
+        }
+    }
+
+    /**
+     * Read a boolean preference of config.xml. Cordova copies the preferences into the extras
+     * of the activity intent, named in lower case and valued as strings.
+     *
+     * @param name              The lower case name of the preference.
+     * @return                  true if the preference is set to true.
+     */
+    private boolean getBooleanPreference(String name) {
+        Bundle extras = cordova.getActivity().getIntent().getExtras();
+        Object value = extras != null ? extras.get(name) : null;
+        if (value instanceof Boolean) {
+            return (Boolean) value;
+        }
+        return value != null && Boolean.parseBoolean(value.toString());
+    }
+
     /**
      * Executes the request and returns PluginResult.
      *
@@ -125,6 +181,9 @@ public class ForegroundCameraLauncher extends CordovaPlugin implements MediaScan
             //this.allowEdit = args.getBoolean(7); // This field is unused.
             this.correctOrientation = args.getBoolean(8);
             this.saveToPhotoAlbum = args.getBoolean(9);
+            this.selectMultiple = args.optBoolean(12, false);
+            this.burst = args.optBoolean(13, false);
+            this.fastCapture = args.optBoolean(14, false);
 
             // If the user specifies a 0 or smaller width/height
             // make it -1 so later comparisons succeed
@@ -157,6 +216,11 @@ public class ForegroundCameraLauncher extends CordovaPlugin implements MediaScan
 
             return true;
         }
+        else if (action.equals("prewarmGallery")) {
+            ImageLibrary.getInstance(cordova.getActivity()).prewarm(args.optInt(0, PREWARM_THUMBNAILS));
+            callbackContext.success();
+            return true;
+        }
         return false;
     }
 
@@ -197,6 +261,12 @@ public class ForegroundCameraLauncher extends CordovaPlugin implements MediaScan
      * @param returnType        Set the type of image to return.
      */
     public void takePicture(int returnType, int encodingType) {
+        long startTime = SystemClock.elapsedRealtime();
+        // Open the camera while the activity is launched
+        if (getBooleanPreference(CAMERA_PREWARM_PREFERENCE)) {
+            CameraOpener.getInstance().prewarm();
+        }
+
         // Save the number of images currently on disk for later
         this.numPics = queryImgDB(whichContentStore()).getCount();
 
@@ -207,6 +277,17 @@ public class ForegroundCameraLauncher extends CordovaPlugin implements MediaScan
         // Specify file so that large image is captured and returned
         File photo = createCaptureFile(encodingType);
         intent.putExtra(android.provider.MediaStore.EXTRA_OUTPUT, Uri.fromFile(photo));
+        intent.putExtra(CameraActivity.EXTRA_BURST, this.burst);
+        // Let the camera take the smallest picture the scaling below needs
+        intent.putExtra(CameraActivity.EXTRA_TARGET_WIDTH, this.targetWidth);
+        intent.putExtra(CameraActivity.EXTRA_TARGET_HEIGHT, this.targetHeight);
+        intent.putExtra(CameraActivity.EXTRA_QUALITY, this.mQuality);
+        intent.putExtra(CameraActivity.EXTRA_FAST_CAPTURE, this.fastCapture);
+        intent.putExtra(CameraActivity.EXTRA_START_TIME, startTime);
+        // Get the picture in memory rather than through the capture file
+        this.handoffToken = JpegHandoff.newToken();
+        intent.putExtra(JpegHandoff.EXTRA_TOKEN, this.handoffToken);
+        intent.putExtra(CameraActivity.EXTRA_ANALYZE_PREVIEW, getBooleanPreference(ANALYSIS_PREFERENCE));
         this.imageUri = Uri.fromFile(photo);
 
         if (this.cordova != null) {
@@ -244,6 +325,7 @@ public class ForegroundCameraLauncher extends CordovaPlugin implements MediaScan
     // TODO: Images selected from SDCARD don't display correctly, but from CAMERA ALBUM do!
     public void getImage(int srcType, int returnType) {
         Intent intent = new Intent(this.cordova.getActivity().getApplicationContext() , GalleryActivity.class);
+        intent.putExtra(GalleryActivity.EXTRA_MULTIPLE, this.selectMultiple);
 
 //      String title = GET_PICTURE;
 //        if (this.mediaType == PICTURE) {
@@ -283,10 +365,24 @@ public class ForegroundCameraLauncher extends CordovaPlugin implements MediaScan
         int rotate = 0;
 
         // If CAMERA
-        if (srcType == CAMERA) {
+        if (srcType == CAMERA && this.burst) {
+            processBurst(resultCode);
+        }
+        else if (srcType == CAMERA) {
+            // Taken whatever the result, so a picture grabbed as the user cancelled is dropped
+            JpegHandoff.Capture capture = JpegHandoff.take(this.handoffToken);
             // If image available
             if (resultCode == Activity.RESULT_OK) {
+                if (capture != null) {
+                    processCapture(capture, destType);
+                    return;
+                }
                 try {
+                    // The camera hands the picture to the I/O worker and finishes before it is written
+                    if (!JpegWriter.getInstance().await(new File(FileHelper.stripFileProtocol(imageUri.toString())))) {
+                        throw new IOException("Picture was not written");
+                    }
+
                     // Create an ExifHelper to save the exif data that is lost during compression
                     ExifHelper exif = new ExifHelper();
                     try {
@@ -304,7 +400,7 @@ public class ForegroundCameraLauncher extends CordovaPlugin implements MediaScan
 
                     // If sending base64 image back
                     if (destType == DATA_URL) {
-                        bitmap = getScaledBitmap(FileHelper.stripFileProtocol(imageUri.toString()));
+                        bitmap = getScaledBitmap(FileHelper.stripFileProtocol(imageUri.toString()), this.correctOrientation ? rotate : 0);
                         if (bitmap == null) {
                             // Try to get the bitmap from intent.
                             bitmap = (Bitmap)intent.getExtras().get("data");
@@ -317,10 +413,6 @@ public class ForegroundCameraLauncher extends CordovaPlugin implements MediaScan
                             return;
                         }
 
-                        if (rotate != 0 && this.correctOrientation) {
-                            bitmap = getRotatedBitmap(rotate, bitmap, exif);
-                        }
-
                         this.processPicture(bitmap);
                         checkForDuplicateImage(DATA_URL);
                     }
@@ -346,10 +438,13 @@ public class ForegroundCameraLauncher extends CordovaPlugin implements MediaScan
 
                             this.callbackContext.success(uri.toString());
                         } else {
-                            bitmap = getScaledBitmap(FileHelper.stripFileProtocol(imageUri.toString()));
-
+                            bitmap = getScaledBitmap(FileHelper.stripFileProtocol(imageUri.toString()), this.correctOrientation ? rotate : 0);
+                            if (bitmap == null) {
+                                this.failPicture("Unable to create bitmap!");
+                                return;
+                            }
                             if (rotate != 0 && this.correctOrientation) {
-                                bitmap = getRotatedBitmap(rotate, bitmap, exif);
+                                exif.resetOrientation();
                             }
 
                             // Add compressed version of captured image to returned media store Uri
@@ -396,7 +491,10 @@ public class ForegroundCameraLauncher extends CordovaPlugin implements MediaScan
 
         // If retrieving photo from library
         else if ((srcType == PHOTOLIBRARY) || (srcType == SAVEDPHOTOALBUM)) {
-            if (resultCode == Activity.RESULT_OK) {
+            if (resultCode == Activity.RESULT_OK && this.selectMultiple) {
+                processPickedImages(intent.getIntArrayExtra(GalleryActivity.EXTRA_IMAGE_IDS), destType);
+            }
+            else if (resultCode == Activity.RESULT_OK) {
                 Uri uri = intent.getData();
 
                 // If you ask for video or all media type you will automatically get back a file URI
@@ -420,9 +518,18 @@ public class ForegroundCameraLauncher extends CordovaPlugin implements MediaScan
                             this.failPicture("Unable to retrieve path to picture!");
                             return;
                         }
+                        if (this.correctOrientation) {
+                            rotate = getImageOrientation(uri);
+                            if (rotate != 0) {
+                                // Decode, scale and rotate off the main thread
+                                RotateTask r = new RotateTask(uriString, srcType, destType, rotate, intent);
+                                r.execute();
+                                return;
+                            }
+                        }
                         Bitmap bitmap = null;
                         try {
-                            bitmap = getScaledBitmap(uriString);
+                            bitmap = getScaledBitmap(uriString, 0);
                         } catch (IOException e) {
                             e.printStackTrace();
                         }
@@ -431,18 +538,6 @@ public class ForegroundCameraLauncher extends CordovaPlugin implements MediaScan
                             this.failPicture("Unable to create bitmap!");
                             return;
                         }
-
-                        if (this.correctOrientation) {
-                            rotate = getImageOrientation(uri);
-                            if (rotate != 0) {
-//                                Matrix matrix = new Matrix();
-//                                matrix.setRotate(rotate);
-//                                bitmap = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
-                                RotateTask r = new RotateTask(bitmap, srcType, destType, rotate, intent);
-                                r.execute();
-                                return;
-                            }
-                        }
                         returnImageToProcess(bitmap, srcType, destType, intent, rotate);
                     }
                 }
@@ -457,15 +552,14 @@ public class ForegroundCameraLauncher extends CordovaPlugin implements MediaScan
     }
     
     public class RotateTask extends AsyncTask<Void, Void, Bitmap> {
-        private WeakReference<Bitmap> rotateBitmap;
-        private Bitmap inputBitmap;
+        private String uriString;
         int srcType ;
         int destType ;
         Intent intent;
         int rotate;
 
-        public RotateTask(Bitmap inputBitmap, int srcType, int destType, int rotate, Intent intent){
-            this.inputBitmap = inputBitmap;
+        public RotateTask(String uriString, int srcType, int destType, int rotate, Intent intent){
+            this.uriString = uriString;
             this.srcType = srcType;
             this.destType = destType;
             this.intent = intent;
@@ -479,15 +573,22 @@ public class ForegroundCameraLauncher extends CordovaPlugin implements MediaScan
 
         @Override
         protected Bitmap doInBackground(Void... params) {
-            Matrix matrix = new Matrix();
-            matrix.postRotate(rotate);
-            rotateBitmap = new WeakReference<Bitmap>(Bitmap.createBitmap(inputBitmap, 0, 0,inputBitmap.getWidth(), inputBitmap.getHeight(), matrix, true));
-            return rotateBitmap.get();
+            try {
+                return getScaledBitmap(uriString, rotate);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return null;
+            }
         }
 
         @Override
         protected void onPostExecute(Bitmap bitmap) {
             //dismiss progress dialog
+            if (bitmap == null) {
+                Log.d(LOG_TAG, "I either have a null image path or bitmap");
+                failPicture("Unable to create bitmap!");
+                return;
+            }
             // If sending base64 image back
             returnImageToProcess(bitmap, srcType, destType, intent, rotate);
         }
@@ -505,30 +606,8 @@ public class ForegroundCameraLauncher extends CordovaPlugin implements MediaScan
             // Do we need to scale the returned file
             if (targetHeight > 0 && targetWidth > 0) {
                 try {
-                    // Create an ExifHelper to save the exif data that is lost during compression
                     String resizePath = getTempDirectoryPath() + "/resize.jpg";
-                    // Some content: URIs do not map to file paths (e.g. picasa).
-                    String realPath = FileHelper.getRealPath(uri, cordova);
-                    ExifHelper exif = new ExifHelper();
-                    if (realPath != null && encodingType == JPEG) {
-                        try {
-                            exif.createInFile(realPath);
-                            exif.readExifData();
-                            rotate = exif.getOrientation();
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-                    }
-
-                    OutputStream os = new FileOutputStream(resizePath);
-                    bitmap.compress(Bitmap.CompressFormat.JPEG, mQuality, os);
-                    os.close();
-
-                    // Restore exif data to file
-                    if (realPath != null && encodingType == JPEG) {
-                        exif.createOutFile(resizePath);
-                        exif.writeExifData();
-                    }
+                    writeResizedImage(bitmap, uri, resizePath);
 
                     // The resized image is cached by the app in order to get around this and not have to delete you
                     // application cache I'm adding the current system time to the end of the file url.
@@ -542,11 +621,265 @@ public class ForegroundCameraLauncher extends CordovaPlugin implements MediaScan
                 callbackContext.success(uri.toString());
             }
         }
-        if (bitmap != null) {
-            bitmap.recycle();
-            bitmap = null;
+        BitmapPool.getInstance(cordova.getActivity()).put(bitmap);
+    }
+
+    /**
+     * Compress a resized library image to a file, keeping the exif data of the original.
+     *
+     * @param bitmap            The resized image.
+     * @param uri               The original image.
+     * @param resizePath        The file to write.
+     * @throws IOException
+     */
+    private void writeResizedImage(Bitmap bitmap, Uri uri, String resizePath) throws IOException {
+        // Create an ExifHelper to save the exif data that is lost during compression
+        // Some content: URIs do not map to file paths (e.g. picasa).
+        String realPath = FileHelper.getRealPath(uri, cordova);
+        ExifHelper exif = new ExifHelper();
+        if (realPath != null && encodingType == JPEG) {
+            try {
+                exif.createInFile(realPath);
+                exif.readExifData();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        OutputStream os = new FileOutputStream(resizePath);
+        bitmap.compress(Bitmap.CompressFormat.JPEG, mQuality, os);
+        os.close();
+
+        // Restore exif data to file
+        if (realPath != null && encodingType == JPEG) {
+            exif.createOutFile(resizePath);
+            exif.writeExifData();
+        }
+    }
+
+    /**
+     * Process a picture handed over in memory by the camera like one read from the capture file.
+     * The picture is decoded from memory and its orientation comes with it, so only the final
+     * output is written to disk, once, with the EXIF data of the camera.
+     *
+     * @param capture           The picture and its orientation.
+     * @param destType          DATA_URL, FILE_URI or NATIVE_URI.
+     */
+    private void processCapture(JpegHandoff.Capture capture, int destType) {
+        int rotate = this.correctOrientation ? getRotation(capture.orientation) : 0;
+        Bitmap bitmap = null;
+        Uri uri = null;
+        try {
+            if (destType == DATA_URL) {
+                bitmap = getScaledBitmap(capture.jpeg, rotate);
+                if (bitmap == null) {
+                    Log.d(LOG_TAG, "I either have a null image path or bitmap");
+                    this.failPicture("Unable to create bitmap!");
+                    return;
+                }
+                this.processPicture(bitmap);
+                checkForDuplicateImage(DATA_URL);
+            }
+            else if (destType == FILE_URI || destType == NATIVE_URI) {
+                File file;
+                if (this.saveToPhotoAlbum) {
+                    file = new File(FileHelper.getRealPath(getUriFromMediaStore(), this.cordova));
+                } else {
+                    file = new File(getTempDirectoryPath(), System.currentTimeMillis() + ".jpg");
+                }
+                uri = Uri.fromFile(file);
+
+                // If all this is true we shouldn't compress the image.
+                if (this.targetHeight == -1 && this.targetWidth == -1 && this.mQuality == 100 &&
+                        !this.correctOrientation) {
+                    byte[] segment = capture.orientation != ExifInterface.ORIENTATION_UNDEFINED ? ExifOrientation.splice(capture.jpeg, capture.orientation) : null;
+                    JpegWriter.write(capture.jpeg, segment, capture.orientation, file);
+                } else {
+                    bitmap = getScaledBitmap(capture.jpeg, rotate);
+                    if (bitmap == null) {
+                        this.failPicture("Unable to create bitmap!");
+                        return;
+                    }
+                    int orientation = capture.orientation != ExifInterface.ORIENTATION_UNDEFINED ? capture.orientation : ExifInterface.ORIENTATION_NORMAL;
+                    if (rotate != 0) {
+                        orientation = ExifInterface.ORIENTATION_NORMAL;
+                    }
+                    ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+                    bitmap.compress(Bitmap.CompressFormat.JPEG, this.mQuality, jpeg);
+                    // Restore the exif data of the camera in the single write
+                    byte[] segment = this.encodingType == JPEG ? ExifOrientation.copySegment(capture.jpeg, orientation) : null;
+                    JpegWriter.write(jpeg.toByteArray(), segment, orientation, file);
+                }
+                // Send Uri back to JavaScript for viewing image
+                this.callbackContext.success(uri.toString());
+            }
+            this.cleanup(FILE_URI, this.imageUri, uri, bitmap);
+        } catch (IOException e) {
+            e.printStackTrace();
+            this.failPicture("Error capturing image.");
+        }
+    }
+
+    /**
+     * @param orientation       One of the ExifInterface ORIENTATION_ values.
+     * @return                  The clockwise rotation in degrees it stands for.
+     */
+    private static int getRotation(int orientation) {
+        switch (orientation) {
+        case ExifInterface.ORIENTATION_ROTATE_90:
+            return 90;
+        case ExifInterface.ORIENTATION_ROTATE_180:
+            return 180;
+        case ExifInterface.ORIENTATION_ROTATE_270:
+            return 270;
+        default:
+            return 0;
+        }
+    }
+
+    /**
+     * Wait on a Cordova thread for the pictures of the burst to be written and send them to
+     * JavaScript as {uris, fps}, the file URIs in capture order and the sustained pictures per
+     * second of the pipeline. The pictures are returned as taken, without scaling.
+     *
+     * @param resultCode        The result of the camera, RESULT_CANCELED if nothing was taken.
+     */
+    private void processBurst(final int resultCode) {
+        final BurstPipeline pipeline = BurstPipeline.end();
+        if (pipeline == null) {
+            // The camera could not be opened
+            this.failPicture(resultCode == Activity.RESULT_CANCELED ? "Camera cancelled." : "Did not complete!");
+            return;
+        }
+        final CallbackContext callback = this.callbackContext;
+        this.cordova.getThreadPool().execute(new Runnable() {
+            public void run() {
+                List<File> files;
+                try {
+                    files = pipeline.await();
+                } catch (InterruptedException e) {
+                    callback.error("Error capturing image.");
+                    return;
+                }
+                if (resultCode != Activity.RESULT_OK || files.isEmpty()) {
+                    for (File file : files) {
+                        file.delete();
+                    }
+                    callback.error(resultCode == Activity.RESULT_CANCELED ? "Camera cancelled." : "Error capturing image.");
+                    return;
+                }
+                try {
+                    JSONArray uris = new JSONArray();
+                    for (File file : files) {
+                        uris.put(Uri.fromFile(file).toString());
+                    }
+                    JSONObject result = new JSONObject();
+                    result.put("uris", uris);
+                    result.put("fps", pipeline.getFramesPerSecond());
+                    Log.d(LOG_TAG, "Burst of " + files.size() + " pictures at " + pipeline.getFramesPerSecond() + " fps");
+                    callback.success(result);
+                } catch (JSONException e) {
+                    callback.error(e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * Process the images picked in multi-select mode on a small pool of worker threads, so that
+     * only a few full size images are in memory at once. Each result is sent to JavaScript as soon
+     * as it is ready, as {index, count, result} or {index, count, error}; the callback is kept
+     * until the last one.
+     *
+     * @param imageIDs          MediaStore _IDs of the picked images.
+     * @param destType          DATA_URL, FILE_URI or NATIVE_URI.
+     */
+    private void processPickedImages(final int[] imageIDs, final int destType) {
+        final CallbackContext callback = this.callbackContext;
+        final AtomicInteger remaining = new AtomicInteger(imageIDs.length);
+        ExecutorService pipeline = Executors.newFixedThreadPool(Math.min(PIPELINE_THREADS, imageIDs.length));
+        for (int i = 0; i < imageIDs.length; i++) {
+            final int index = i;
+            pipeline.execute(new Runnable() {
+                public void run() {
+                    Uri uri = Uri.parse(MediaStore.Images.Media.EXTERNAL_CONTENT_URI + "/" + imageIDs[index]);
+                    PluginResult result = null;
+                    try {
+                        JSONObject item = new JSONObject();
+                        item.put("index", index);
+                        item.put("count", imageIDs.length);
+                        try {
+                            item.put("result", processPickedImage(uri, destType, index));
+                            result = new PluginResult(PluginResult.Status.OK, item);
+                        } catch (Exception e) {
+                            Log.d(LOG_TAG, "Unable to process picked image " + uri + ": " + e.getMessage());
+                            item.put("error", e.getMessage());
+                            result = new PluginResult(PluginResult.Status.ERROR, item);
+                        } catch (OutOfMemoryError e) {
+                            Log.d(LOG_TAG, "Out of memory processing picked image " + uri);
+                            BitmapPool.getInstance(cordova.getActivity()).clear();
+                            item.put("error", "Out of memory.");
+                            result = new PluginResult(PluginResult.Status.ERROR, item);
+                        }
+                    } catch (JSONException e) {
+                        result = new PluginResult(PluginResult.Status.ERROR, e.getMessage());
+                    } finally {
+                        if (result == null) {
+                            result = new PluginResult(PluginResult.Status.ERROR, "Unable to process picked image.");
+                        }
+                        // The callback is finished by the last result, which must be sent last.
+                        synchronized (callback) {
+                            result.setKeepCallback(remaining.decrementAndGet() > 0);
+                            callback.sendPluginResult(result);
+                        }
+                    }
+                }
+            });
+        }
+        pipeline.shutdown();
+    }
+
+    /**
+     * Scale, rotate and encode one picked image like a single library image. Called on the
+     * multi-select workers.
+     *
+     * @param uri               The picked image.
+     * @param destType          DATA_URL, FILE_URI or NATIVE_URI.
+     * @param index             Position of the image in the selection, names its resized file.
+     * @return                  The string to send to JavaScript.
+     * @throws IOException
+     */
+    private String processPickedImage(Uri uri, int destType, int index) throws IOException {
+        String uriString = uri.toString();
+        if (this.mediaType != PICTURE || (this.targetHeight == -1 && this.targetWidth == -1 &&
+                (destType == FILE_URI || destType == NATIVE_URI) && !this.correctOrientation)) {
+            return uriString;
+        }
+        String mimeType = FileHelper.getMimeType(uriString, this.cordova);
+        if (!("image/jpeg".equalsIgnoreCase(mimeType) || "image/png".equalsIgnoreCase(mimeType))) {
+            throw new IOException("Unable to retrieve path to picture!");
+        }
+        Bitmap bitmap = getScaledBitmap(uriString, this.correctOrientation ? getImageOrientation(uri) : 0);
+        if (bitmap == null) {
+            throw new IOException("Unable to create bitmap!");
+        }
+        try {
+            if (destType == DATA_URL) {
+                String encoded = encodePicture(bitmap);
+                if (encoded == null) {
+                    throw new IOException("Error compressing image.");
+                }
+                return encoded;
+            }
+            if (targetHeight > 0 && targetWidth > 0) {
+                String resizePath = getTempDirectoryPath() + "/resize-" + index + ".jpg";
+                writeResizedImage(bitmap, uri, resizePath);
+                return "file://" + resizePath + "?" + System.currentTimeMillis();
+            }
+            return uriString;
+        } finally {
+            BitmapPool.getInstance(cordova.getActivity()).put(bitmap);
         }
-        System.gc();
     }
     
     private int getImageOrientation(Uri uri) {
@@ -562,38 +895,6 @@ public class ForegroundCameraLauncher extends CordovaPlugin implements MediaScan
         return rotate;
     }
 
-    /**
-     * Figure out if the bitmap should be rotated. For instance if the picture was taken in
-     * portrait mode
-     *
-     * @param rotate
-     * @param bitmap
-     * @return rotated bitmap
-     */
-    private Bitmap getRotatedBitmap(int rotate, Bitmap bitmap, ExifHelper exif) {
-        Matrix matrix = new Matrix();
-        if (rotate == 180) {
-            matrix.setRotate(rotate);
-        } else {
-            matrix.setRotate(rotate, (float) bitmap.getWidth() / 2, (float) bitmap.getHeight() / 2);
-        }
-
-        try
-        {
-            bitmap = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
-            exif.resetOrientation();
-        }
-        catch (OutOfMemoryError oom)
-        {
-            // You can run out of memory if the image is very large:
-            // http://simonmacdonald.blogspot.ca/2012/07/change-to-camera-code-in-phonegap-190.html
-            // If this happens, simply do not rotate the image and return it unmodified.
-            // If you do not catch the OutOfMemoryError, the Android app crashes.
-        }
-
-        return bitmap;
-    }
-
     /**
      * In the special case where the default width, height and quality are unchanged
      * we just write the file out to disk saving the expensive Bitmap.compress function.
@@ -640,22 +941,55 @@ public class ForegroundCameraLauncher extends CordovaPlugin implements MediaScan
     }
 
     /**
-     * Return a scaled bitmap based on the target width and height
+     * Return a scaled and rotated bitmap based on the target width and height
      *
-     * @param imagePath
+     * @param imageUrl
+     * @param rotate            Degrees to rotate the image clockwise, 0 to keep it as is.
      * @return
      * @throws IOException
      */
-    private Bitmap getScaledBitmap(String imageUrl) throws IOException {
-        // If no new width or height were specified return the original bitmap
-        if (this.targetWidth <= 0 && this.targetHeight <= 0) {
-            return BitmapFactory.decodeStream(FileHelper.getInputStreamFromUriString(imageUrl, cordova));
+    private Bitmap getScaledBitmap(final String imageUrl, int rotate) throws IOException {
+        DecodeSource source = new DecodeSource(new DecodeSource.Opener() {
+            public InputStream open() throws IOException {
+                return FileHelper.getInputStreamFromUriString(imageUrl, cordova);
+            }
+        });
+        try {
+            return getScaledBitmap(source, rotate);
+        } finally {
+            source.close();
+            Log.d(LOG_TAG, "Decoded " + imageUrl + " from " + source);
         }
+    }
+
+    /**
+     * Scale and rotate a picture held in memory, like {@link #getScaledBitmap(String, int)}.
+     *
+     * @param jpeg              The picture.
+     * @param rotate            Degrees to rotate the picture clockwise, 0 to keep it as is.
+     * @return                  The final bitmap, or null if it could not be decoded.
+     * @throws IOException
+     */
+    private Bitmap getScaledBitmap(byte[] jpeg, int rotate) throws IOException {
+        return getScaledBitmap(DecodeSource.fromBytes(jpeg), rotate);
+    }
 
+    /**
+     * Decode the bounds and then the pixels of an image from a single open of its source. The
+     * pixels are decoded at the largest power-of-two sample that keeps them at least as large as
+     * the target, then scaled and rotated to the final bitmap in a single draw, so at most the
+     * decoded and the final bitmap are held at once.
+     *
+     * @param source            The image.
+     * @param rotate            Degrees to rotate the image clockwise, 0 to keep it as is.
+     * @return                  The final bitmap, or null if it could not be decoded.
+     * @throws IOException
+     */
+    private Bitmap getScaledBitmap(DecodeSource source, int rotate) throws IOException {
         // figure out the original width and height of the image
         BitmapFactory.Options options = new BitmapFactory.Options();
         options.inJustDecodeBounds = true;
-        BitmapFactory.decodeStream(FileHelper.getInputStreamFromUriString(imageUrl, cordova), null, options);
+        BitmapFactory.decodeStream(source.rewind(), null, options);
 
         //CB-2292: WTF? Why is the width null?
         if(options.outWidth == 0 || options.outHeight == 0)
@@ -663,18 +997,80 @@ public class ForegroundCameraLauncher extends CordovaPlugin implements MediaScan
             return null;
         }
 
-        // determine the correct aspect ratio
+        // determine the correct aspect ratio, the original size if no target was specified
         int[] widthHeight = calculateAspectRatio(options.outWidth, options.outHeight);
 
-        // Load in the smallest bitmap possible that is closest to the size we want
+        // Load in the smallest bitmap possible that is closest to the size we want,
+        // reusing the memory of a previous decode when possible
         options.inJustDecodeBounds = false;
-        options.inSampleSize = calculateSampleSize(options.outWidth, options.outHeight, this.targetWidth, this.targetHeight);
-        Bitmap unscaledBitmap = BitmapFactory.decodeStream(FileHelper.getInputStreamFromUriString(imageUrl, cordova), null, options);
-        if (unscaledBitmap == null) {
+        options.inSampleSize = calculateSampleSize(options.outWidth, options.outHeight, widthHeight[0], widthHeight[1]);
+        BitmapPool pool = BitmapPool.getInstance(cordova.getActivity());
+        pool.addInBitmapOptions(options);
+        Bitmap decoded;
+        try {
+            decoded = BitmapFactory.decodeStream(source.rewind(), null, options);
+        } catch (IllegalArgumentException e) {
+            // The pooled bitmap did not fit after all, decode into a new one
+            pool.put(options.inBitmap);
+            options.inBitmap = null;
+            decoded = BitmapFactory.decodeStream(source.rewind(), null, options);
+        }
+        if (decoded == null) {
             return null;
         }
+        if (rotate == 0 && decoded.getWidth() == widthHeight[0] && decoded.getHeight() == widthHeight[1]) {
+            return decoded;
+        }
+        return transformBitmap(decoded, widthHeight[0], widthHeight[1], rotate);
+    }
 
-        return Bitmap.createScaledBitmap(unscaledBitmap, widthHeight[0], widthHeight[1], true);
+    /**
+     * Scale a decoded bitmap to the given size and rotate it, with a single matrix drawn into the
+     * final bitmap. The decoded bitmap is given back to the pool.
+     *
+     * @param decoded           The decoded bitmap.
+     * @param width             Width of the scaled image, before the rotation.
+     * @param height            Height of the scaled image, before the rotation.
+     * @param rotate            Degrees to rotate the image clockwise, a multiple of 90.
+     * @return                  The final bitmap, or null if there is not enough memory for it.
+     */
+    private Bitmap transformBitmap(Bitmap decoded, int width, int height, int rotate) {
+        Matrix matrix = new Matrix();
+        matrix.setScale((float) width / decoded.getWidth(), (float) height / decoded.getHeight());
+        matrix.postRotate(rotate);
+        // Move the rotated image back to the origin
+        RectF bounds = new RectF(0, 0, decoded.getWidth(), decoded.getHeight());
+        matrix.mapRect(bounds);
+        matrix.postTranslate(-bounds.left, -bounds.top);
+
+        boolean swap = rotate == 90 || rotate == 270;
+        int finalWidth = swap ? height : width;
+        int finalHeight = swap ? width : height;
+        Bitmap.Config config = decoded.getConfig() != null ? decoded.getConfig() : Bitmap.Config.ARGB_8888;
+        BitmapPool pool = BitmapPool.getInstance(cordova.getActivity());
+        Bitmap bitmap;
+        try {
+            bitmap = pool.get(finalWidth, finalHeight, config);
+        } catch (OutOfMemoryError oom) {
+            // You can run out of memory if the image is very large:
+            // http://simonmacdonald.blogspot.ca/2012/07/change-to-camera-code-in-phonegap-190.html
+            // Free the pooled bitmaps and try once more.
+            pool.clear();
+            try {
+                bitmap = Bitmap.createBitmap(finalWidth, finalHeight, config);
+            } catch (OutOfMemoryError e) {
+                Log.d(LOG_TAG, "Not enough memory for a " + finalWidth + "x" + finalHeight + " bitmap");
+                pool.put(decoded);
+                return null;
+            }
+        }
+        if (decoded.hasAlpha()) {
+            // A pooled bitmap is not blank
+            bitmap.eraseColor(Color.TRANSPARENT);
+        }
+        new Canvas(bitmap).drawBitmap(decoded, matrix, new Paint(Paint.FILTER_BITMAP_FLAG));
+        pool.put(decoded);
+        return bitmap;
     }
 
     /**
@@ -726,7 +1122,8 @@ public class ForegroundCameraLauncher extends CordovaPlugin implements MediaScan
 
     /**
      * Figure out what ratio we can load our image into memory at while still being bigger than
-     * our desired width and height
+     * our desired width and height. The decoder only samples by powers of two, so this is the
+     * largest power of two that keeps both sides at least as large as the desired ones.
      *
      * @param srcWidth
      * @param srcHeight
@@ -735,15 +1132,14 @@ public class ForegroundCameraLauncher extends CordovaPlugin implements MediaScan
      * @return
      */
     public static int calculateSampleSize(int srcWidth, int srcHeight, int dstWidth, int dstHeight) {
-        final float srcAspect = (float)srcWidth / (float)srcHeight;
-        final float dstAspect = (float)dstWidth / (float)dstHeight;
-
-        if (srcAspect > dstAspect) {
-            return srcWidth / dstWidth;
-        } else {
-            return srcHeight / dstHeight;
+        dstWidth = Math.max(dstWidth, 1);
+        dstHeight = Math.max(dstHeight, 1);
+        int sampleSize = 1;
+        while (srcWidth / (sampleSize * 2) >= dstWidth && srcHeight / (sampleSize * 2) >= dstHeight) {
+            sampleSize *= 2;
         }
-      }
+        return sampleSize;
+    }
 
     /**
      * Creates a cursor that can be used to determine how many images we have.
@@ -764,9 +1160,7 @@ public class ForegroundCameraLauncher extends CordovaPlugin implements MediaScan
      * @param newImage
      */
     private void cleanup(int imageType, Uri oldImage, Uri newImage, Bitmap bitmap) {
-        if (bitmap != null) {
-            bitmap.recycle();
-        }
+        BitmapPool.getInstance(cordova.getActivity()).put(bitmap);
 
         // Clean up initial camera-written image file.
         (new File(FileHelper.stripFileProtocol(oldImage.toString()))).delete();
@@ -776,8 +1170,6 @@ public class ForegroundCameraLauncher extends CordovaPlugin implements MediaScan
         if (this.saveToPhotoAlbum && newImage != null) {
             this.scanForGallery(newImage);
         }
-
-        System.gc();
     }
 
     /**
@@ -828,21 +1220,29 @@ public class ForegroundCameraLauncher extends CordovaPlugin implements MediaScan
      * @param bitmap
      */
     public void processPicture(Bitmap bitmap) {
-        ByteArrayOutputStream jpeg_data = new ByteArrayOutputStream();
         try {
-            if (bitmap.compress(CompressFormat.JPEG, mQuality, jpeg_data)) {
-                byte[] code = jpeg_data.toByteArray();
-                byte[] output = Base64.encode(code, Base64.NO_WRAP);
-                String js_out = new String(output);
+            String js_out = encodePicture(bitmap);
+            if (js_out != null) {
                 this.callbackContext.success(js_out);
-                js_out = null;
-                output = null;
-                code = null;
             }
         } catch (Exception e) {
             this.failPicture("Error compressing image.");
         }
-        jpeg_data = null;
+    }
+
+    /**
+     * Compress bitmap using jpeg and convert to Base64 encoded string.
+     *
+     * @param bitmap
+     * @return the Base64 string, or null if the bitmap could not be compressed
+     */
+    private String encodePicture(Bitmap bitmap) {
+        // The JPEG is encoded as it is compressed, into one buffer sized for the largest JPEG
+        Base64Buffer output = new Base64Buffer(Base64Buffer.getJpegSizeBound(bitmap.getWidth(), bitmap.getHeight(), mQuality));
+        if (!bitmap.compress(CompressFormat.JPEG, mQuality, output)) {
+            return null;
+        }
+        return output.toString();
     }
 
     /**
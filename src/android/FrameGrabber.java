@@ -0,0 +1,55 @@
+package com.tuxpan.foregroundcameragalleryplugin;
+
+import java.io.ByteArrayOutputStream;
+
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
+
+/**
+ * Encodes the next preview frame to JPEG on request, for pictures taken
+ * without autofocus and {@link android.hardware.Camera#takePicture}. The frame
+ * is encoded straight from the buffer ring of the {@link PreviewAnalyzer}, so
+ * a picture is ready one frame and one encode after the request.
+ */
+public class FrameGrabber implements PreviewAnalyzer.Analysis {
+
+	/**
+	 * Receives a grabbed frame, on the analyzer worker thread.
+	 */
+	public interface Callback {
+		void onFrameGrabbed(byte[] jpeg);
+	}
+
+	private final int quality;
+	private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+	private volatile Callback pending;
+
+	/**
+	 * @param quality
+	 *            JPEG quality, 0 to 100.
+	 */
+	public FrameGrabber(int quality) {
+		this.quality = quality;
+	}
+
+	/**
+	 * Encode the next frame.
+	 *
+	 * @param callback
+	 */
+	public void grab(Callback callback) {
+		pending = callback;
+	}
+
+	public void analyze(byte[] nv21, int width, int height) {
+		Callback callback = pending;
+		if (callback == null) {
+			return;
+		}
+		pending = null;
+		out.reset();
+		new YuvImage(nv21, ImageFormat.NV21, width, height, null).compressToJpeg(new Rect(0, 0, width, height), quality, out);
+		callback.onFrameGrabbed(out.toByteArray());
+	}
+}
@@ -0,0 +1,67 @@
+package com.tuxpan.foregroundcameragalleryplugin;
+
+/**
+ * Scores the sharpness and exposure of preview frames from their luma plane,
+ * sampled on a coarse grid. The sharpness is the mean absolute Laplacian of
+ * the samples, low on blurred or shaken frames; the exposure is their mean
+ * luma.
+ */
+public class FrameScorer implements PreviewAnalyzer.Analysis {
+
+	// Distance in pixels between two samples.
+	private static final int STEP = 4;
+	// Below this sharpness a frame is considered blurry.
+	private static final float BLUR_THRESHOLD = 6f;
+	// Mean luma range of a well exposed frame.
+	private static final int MIN_EXPOSURE = 40;
+	private static final int MAX_EXPOSURE = 215;
+
+	private volatile float sharpness = Float.MAX_VALUE;
+	private volatile float exposure = -1;
+
+	public void analyze(byte[] nv21, int width, int height) {
+		// The NV21 luma plane comes first, one byte per pixel.
+		long laplacian = 0;
+		long luma = 0;
+		int samples = 0;
+		for (int y = STEP; y < height - STEP; y += STEP) {
+			int row = y * width;
+			for (int x = STEP; x < width - STEP; x += STEP) {
+				int center = nv21[row + x] & 0xFF;
+				int sum = (nv21[row + x - STEP] & 0xFF) + (nv21[row + x + STEP] & 0xFF) + (nv21[row - STEP * width + x] & 0xFF) + (nv21[row + STEP * width + x] & 0xFF);
+				laplacian += Math.abs(sum - 4 * center);
+				luma += center;
+				samples++;
+			}
+		}
+		if (samples > 0) {
+			sharpness = (float) laplacian / samples;
+			exposure = (float) luma / samples;
+		}
+	}
+
+	/**
+	 * @return the sharpness of the last frame, Float.MAX_VALUE before the
+	 *         first one
+	 */
+	public float getSharpness() {
+		return sharpness;
+	}
+
+	/**
+	 * @return the mean luma of the last frame, 0 to 255, or -1 before the
+	 *         first one
+	 */
+	public float getExposure() {
+		return exposure;
+	}
+
+	public boolean isBlurry() {
+		return sharpness < BLUR_THRESHOLD;
+	}
+
+	public boolean isBadlyExposed() {
+		float exposure = this.exposure;
+		return exposure >= 0 && (exposure < MIN_EXPOSURE || exposure > MAX_EXPOSURE);
+	}
+}
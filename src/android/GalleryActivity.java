@@ -17,44 +17,72 @@ package com.tuxpan.foregroundcameragalleryplugin;
  limitations under the License.
  */
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.LinkedHashSet;
 
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.DialogInterface.OnClickListener;
-import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.graphics.drawable.BitmapDrawable;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Bundle;
 import android.provider.MediaStore;
+import android.util.Log;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
 import android.view.Window;
 import android.view.WindowManager;
 import android.widget.AdapterView;
+import android.widget.AbsListView;
+import android.widget.AbsListView.OnScrollListener;
 import android.widget.AdapterView.OnItemClickListener;
 import android.widget.BaseAdapter;
 import android.widget.GridView;
 import android.widget.ImageView;
+import android.widget.SectionIndexer;
 
 /**
  * Class to search images from the memory card. Based on
  * http://mihaifonoage.blogspot
  * .com/2009/11/displaying-images-from-sd-card-in.html Thanks to the author.
  */
-public class GalleryActivity extends Activity implements OnItemClickListener {
+public class GalleryActivity extends Activity implements OnItemClickListener, OnScrollListener {
+
+	private static final String TAG = "GalleryActivity";
+
+	/** Boolean extra: pick several images instead of one. */
+	public static final String EXTRA_MULTIPLE = "multiple";
+	/** Result extra: int[] of the picked image _IDs, in selection order. */
+	public static final String EXTRA_IMAGE_IDS = "imageIDs";
+
+	private static final int MENU_DONE = 1;
+	private static final int SELECTED_COLOR = 0xFF33B5E5;
+
+	static final int NUM_COLUMNS = 3;
+	// Padding around each thumbnail of the grid, in pixels.
+	static final int CELL_PADDING = 8;
+	// Rows decoded ahead of (and kept behind) the visible ones.
+	private static final int PREFETCH_ROWS = 2;
+	// Number of image IDs read from the cursor before the grid is refreshed.
+	private static final int INDEX_CHUNK = 256;
 
 	private GridView sdcardImages;
 	private ImageAdapter imageAdapter;
 	private LoadImagesFromSDCard load;
-	private Map<Integer, Integer> sequencialImageID;
+	private ThumbnailLoader thumbnailLoader;
+	private ImageIndex imageIndex;
+	private int firstVisible = -1;
+	private int visibleCount = -1;
+	// While flinging or fast-scrolling, rows are shown without decoding.
+	private boolean flinging;
+	private int scrollState = OnScrollListener.SCROLL_STATE_IDLE;
+	private boolean multiple;
+	private LinkedHashSet<Integer> selected = new LinkedHashSet<Integer>();
 
 	/**
 	 * Creates the content view, sets up the grid, the adapter, and the click
@@ -72,9 +100,82 @@ public class GalleryActivity extends Activity implements OnItemClickListener {
 
 		((WindowManager) getSystemService(Context.WINDOW_SERVICE)).getDefaultDisplay();
 
+		multiple = getIntent().getBooleanExtra(EXTRA_MULTIPLE, false);
+		final RetainedState state = (RetainedState) getLastNonConfigurationInstance();
+		if (state != null) {
+			thumbnailLoader = state.thumbnailLoader;
+			selected = state.selected;
+		}
 		setupViews();
+		updateSelectionTitle();
 		setProgressBarIndeterminateVisibility(true);
-		loadImages();
+		if (state == null) {
+			loadImages();
+		} else {
+			restore(state);
+		}
+	}
+
+	/**
+	 * Hand the whole gallery state over to the next instance: the index, the
+	 * index task if it still runs, the thumbnail loader with its pending
+	 * decodes, and the scroll position. Thumbnails stay in the shared
+	 * {@link ThumbnailCache}.
+	 * 
+	 * @see android.app.Activity#onRetainNonConfigurationInstance()
+	 */
+	@Override
+	public Object onRetainNonConfigurationInstance() {
+		RetainedState state = new RetainedState();
+		state.imageIndex = imageIndex;
+		state.load = load;
+		state.thumbnailLoader = thumbnailLoader;
+		state.selected = selected;
+		state.firstVisible = sdcardImages.getFirstVisiblePosition();
+		load = null;
+		return state;
+	}
+
+	/**
+	 * Show the state of the previous instance, without any query or decode
+	 * that is not already running.
+	 * 
+	 * @param state
+	 */
+	private void restore(RetainedState state) {
+		if (state.imageIndex != null) {
+			setIndex(state.imageIndex);
+			sdcardImages.setSelection(state.firstVisible);
+		}
+		load = state.load;
+		if (load != null && load.getStatus() != AsyncTask.Status.FINISHED) {
+			load.attach(this);
+		} else {
+			load = null;
+			setProgressBarIndeterminateVisibility(false);
+		}
+	}
+
+	/**
+	 * Add the done button in multi-select mode.
+	 * 
+	 * @see android.app.Activity#onCreateOptionsMenu(android.view.Menu)
+	 */
+	@Override
+	public boolean onCreateOptionsMenu(Menu menu) {
+		if (multiple) {
+			menu.add(Menu.NONE, MENU_DONE, Menu.NONE, "OK").setShowAsAction(MenuItem.SHOW_AS_ACTION_ALWAYS);
+		}
+		return super.onCreateOptionsMenu(menu);
+	}
+
+	@Override
+	public boolean onOptionsItemSelected(MenuItem item) {
+		if (item.getItemId() == MENU_DONE) {
+			finishWithSelection();
+			return true;
+		}
+		return super.onOptionsItemSelected(item);
 	}
 
 	/**
@@ -83,16 +184,16 @@ public class GalleryActivity extends Activity implements OnItemClickListener {
 	@Override
 	protected void onDestroy() {
 		super.onDestroy();
-		final GridView grid = sdcardImages;
-		final int count = grid.getChildCount();
-		ImageView v = null;
-		for (int i = 0; i < count; i++) {
-			v = (ImageView) grid.getChildAt(i);
-			((BitmapDrawable) v.getDrawable()).setCallback(null);
-		}
 		if (load != null) {
 			load.cancel(true);
 		}
+		// The views go away, but pending decodes are kept for the next
+		// instance on a configuration change.
+		if (!isChangingConfigurations()) {
+			thumbnailLoader.cancelAll();
+		}
+		thumbnailLoader.unbindAll();
+		Log.d(TAG, DecodeExecutor.getInstance(this) + " " + ThumbnailCache.getInstance(this));
 	}
 
 	/**
@@ -101,136 +202,174 @@ public class GalleryActivity extends Activity implements OnItemClickListener {
 	private void setupViews() {
 		sdcardImages = (GridView) findViewById(getApplication().getResources().getIdentifier("sdcard", "id", getPackageName()));
 		// sdcardImages.setNumColumns(display.getWidth() / 95);
-		sdcardImages.setNumColumns(3); // DSS
+		sdcardImages.setNumColumns(NUM_COLUMNS); // DSS
 		sdcardImages.setClipToPadding(false);
+		sdcardImages.setFastScrollEnabled(true);
 		sdcardImages.setOnItemClickListener(GalleryActivity.this);
+		sdcardImages.setOnScrollListener(GalleryActivity.this);
+		if (thumbnailLoader == null) {
+			thumbnailLoader = new ThumbnailLoader(this);
+		}
 		imageAdapter = new ImageAdapter(getApplicationContext());
 		sdcardImages.setAdapter(imageAdapter);
 	}
 
 	/**
-	 * Load images.
+	 * Load images. The index kept by the {@link ImageLibrary} since the last
+	 * visit is shown at once, and only refreshed if the media store changed.
 	 */
 	private void loadImages() {
-		final Object data = getLastNonConfigurationInstance();
-		if (data == null) {
-			load = new LoadImagesFromSDCard();
+		ImageLibrary library = ImageLibrary.getInstance(this);
+		ImageIndex index = library.getIndex();
+		if (index != null) {
+			setIndex(index);
+		}
+		if (index == null || library.isStale()) {
+			load = new LoadImagesFromSDCard(this);
 			load.execute();
 		} else {
-			final LoadedImage[] photos = (LoadedImage[]) data;
-			if (photos.length == 0) {
-				load = new LoadImagesFromSDCard();
-				load.execute();
-			}
-			for (LoadedImage photo : photos) {
-				addImage(photo);
-			}
+			setProgressBarIndeterminateVisibility(false);
 		}
 	}
 
 	/**
-	 * Add image(s) to the grid view adapter.
+	 * Show the images of an index.
 	 * 
-	 * @param value
-	 *            Array of LoadedImages references
+	 * @param index
 	 */
-	private void addImage(LoadedImage... value) {
-		for (LoadedImage image : value) {
-			imageAdapter.addPhoto(image);
-			imageAdapter.notifyDataSetChanged();
-		}
+	private void setIndex(ImageIndex index) {
+		imageIndex = index;
+		firstVisible = -1;
+		imageAdapter.setCount(index.size());
 	}
 
 	/**
-	 * Save bitmap images into a list and return that list.
+	 * Keep the thumbnails of the visible rows plus a prefetch window around
+	 * them, and cancel everything else.
 	 * 
-	 * @return
-	 * @see android.app.Activity#onRetainNonConfigurationInstance()
+	 * @see android.widget.AbsListView.OnScrollListener#onScroll(android.widget.AbsListView,
+	 *      int, int, int)
 	 */
-	@Override
-	public Object onRetainNonConfigurationInstance() {
-		final GridView grid = sdcardImages;
-		final int count = grid.getChildCount();
-		final LoadedImage[] list = new LoadedImage[count];
+	public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+		if (firstVisibleItem == firstVisible && visibleItemCount == visibleCount) {
+			return;
+		}
+		// A drag reports TOUCH_SCROLL whether it moves the grid or the fast
+		// scroller thumb, but only the thumb jumps a page between two events.
+		if (scrollState == OnScrollListener.SCROLL_STATE_TOUCH_SCROLL && firstVisible >= 0 && Math.abs(firstVisibleItem - firstVisible) > visibleItemCount) {
+			flinging = true;
+		}
+		firstVisible = firstVisibleItem;
+		visibleCount = visibleItemCount;
+
+		if (flinging) {
+			thumbnailLoader.retainRange(firstVisibleItem, firstVisibleItem);
+			return;
+		}
+		final int prefetch = PREFETCH_ROWS * NUM_COLUMNS;
+		final int end = Math.min(firstVisibleItem + visibleItemCount + prefetch, totalItemCount);
+		thumbnailLoader.retainRange(Math.max(firstVisibleItem - prefetch, 0), end);
+		for (int position = firstVisibleItem + visibleItemCount; position < end; position++) {
+			thumbnailLoader.prefetch(position, imageIndex.getImageID(position), imageIndex.getDateModified(position));
+		}
+	}
 
-		for (int i = 0; i < count; i++) {
-			final ImageView v = (ImageView) grid.getChildAt(i);
-			list[i] = new LoadedImage(((BitmapDrawable) v.getDrawable()).getBitmap());
+	/**
+	 * Skip decoding while flinging or dragging the fast scroller, and load the
+	 * rows the grid settles on.
+	 * 
+	 * @see android.widget.AbsListView.OnScrollListener#onScrollStateChanged(android.widget.AbsListView,
+	 *      int)
+	 */
+	public void onScrollStateChanged(AbsListView view, int scrollState) {
+		boolean wasFlinging = flinging;
+		this.scrollState = scrollState;
+		// A fast scroller drag ends with IDLE, a new drag starts unflagged.
+		flinging = scrollState == OnScrollListener.SCROLL_STATE_FLING;
+		if (wasFlinging && !flinging) {
+			int first = view.getFirstVisiblePosition();
+			for (int i = 0; i < view.getChildCount(); i++) {
+				int position = first + i;
+				thumbnailLoader.loadInto((ImageView) view.getChildAt(i), position, imageIndex.getImageID(position), imageIndex.getDateModified(position));
+			}
+			firstVisible = -1;
+			onScroll(view, first, view.getChildCount(), imageAdapter.getCount());
 		}
+	}
 
-		return list;
+	/**
+	 * Gallery state carried across a configuration change.
+	 */
+	static class RetainedState {
+		ImageIndex imageIndex;
+		LoadImagesFromSDCard load;
+		ThumbnailLoader thumbnailLoader;
+		LinkedHashSet<Integer> selected;
+		int firstVisible;
 	}
 
 	/**
-	 * Async task for loading the images from the SD card. *
+	 * Async task bringing the {@link ImageIndex} of the SD card up to date.
+	 * Thumbnails are decoded later, on demand, by the {@link ThumbnailLoader}.
+	 * The task outlives configuration changes and reports to the current
+	 * activity.
 	 */
-	class LoadImagesFromSDCard extends AsyncTask<Object, LoadedImage, Integer> {
+	static class LoadImagesFromSDCard extends AsyncTask<Object, ImageIndex, Integer> {
+
+		private volatile GalleryActivity activity;
+
+		LoadImagesFromSDCard(GalleryActivity activity) {
+			this.activity = activity;
+		}
+
+		/**
+		 * Report to a new instance of the activity.
+		 * 
+		 * @param activity
+		 */
+		void attach(GalleryActivity activity) {
+			this.activity = activity;
+		}
 
 		/**
-		 * Load images from SD Card in the background, and display each image on
-		 * the screen.
+		 * Build the index in one cursor pass in the background, growing the
+		 * grid every {@link GalleryActivity#INDEX_CHUNK} images, or apply the
+		 * changes since the last visit.
 		 * 
 		 * @see android.os.AsyncTask#doInBackground(Params[])
 		 */
 		@Override
 		protected Integer doInBackground(Object... params) {
-			Bitmap bitmap = null;
-			Bitmap newBitmap = null;
-			sequencialImageID = new HashMap<Integer, Integer>();
-
-			// Set up an array of the Thumbnail Image ID column we want
-			String[] projection = { MediaStore.Images.Media._ID };
-			// Create the cursor pointing to the SDCard
-			Cursor cursor = managedQuery(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, projection, null, null, MediaStore.Images.Media.DATE_TAKEN + " DESC");
-			int columnIndex = cursor.getColumnIndexOrThrow(MediaStore.Images.Media._ID);
-			int size = cursor.getCount();
-			// If size is 0, there are no images on the SD Card.
-			if (size == 0) {
-				return -1;
-			}
-			int imageID = 0;
-			for (int i = 0; i < size; i++) {
-				if (isCancelled() || cursor.isClosed()) {
-					break;
-				}
-				cursor.moveToPosition(i);
-				imageID = cursor.getInt(columnIndex);
-				sequencialImageID.put(Integer.valueOf(i), imageID);
-
-				bitmap = MediaStore.Images.Thumbnails.getThumbnail(getContentResolver(), imageID, MediaStore.Images.Thumbnails.MICRO_KIND, null);
-				if (bitmap != null) {
-					try {
-						newBitmap = Bitmap.createScaledBitmap(bitmap, 170, 170, true);
-						bitmap.recycle();
-						bitmap = null;
-						System.gc();
-						Runtime.getRuntime().gc();
-						if (newBitmap != null) {
-							publishProgress(new LoadedImage(newBitmap));
-						}
-					} catch (OutOfMemoryError e) {
-						bitmap.recycle();
-						bitmap = null;
-						System.gc();
-						Runtime.getRuntime().gc();
-
-						i++;
+			ImageIndex index = ImageLibrary.getInstance(activity).update(new ImageLibrary.Listener() {
+				public void onProgress(ImageIndex partial) {
+					if (!isCancelled()) {
+						publishProgress(partial);
 					}
 				}
+			}, INDEX_CHUNK);
+			// If there is no cursor or size is 0, there are no images on the
+			// SD Card.
+			if (index == null || index.size() == 0) {
+				return -1;
 			}
-			cursor.close();
+			publishProgress(index);
 			return null;
 		}
 
 		/**
-		 * Add a new LoadedImage in the images grid.
+		 * Show the images read so far.
 		 * 
 		 * @param value
-		 *            The image.
+		 *            The index being built.
 		 */
 		@Override
-		public void onProgressUpdate(LoadedImage... value) {
-			addImage(value);
+		public void onProgressUpdate(ImageIndex... value) {
+			ImageIndex index = value[value.length - 1];
+			if (index != activity.imageIndex) {
+				activity.setIndex(index);
+			} else {
+				activity.imageAdapter.setCount(index.size());
+			}
 		}
 
 		/**
@@ -241,45 +380,47 @@ public class GalleryActivity extends Activity implements OnItemClickListener {
 		@Override
 		protected void onPostExecute(Integer result) {
 			if ((result != null) && (result == -1)) {
-				AlertDialog.Builder dialog = new AlertDialog.Builder(sdcardImages.getContext());
+				AlertDialog.Builder dialog = new AlertDialog.Builder(activity.sdcardImages.getContext());
 				dialog.setTitle("Alerta");
 				dialog.setMessage("No se encontrarn imagenes!");
 				dialog.setNeutralButton("OK", new OnClickListener() {
 
 					public void onClick(DialogInterface dialog, int which) {
-						setResult(RESULT_CANCELED);
-						finish();
+						activity.setResult(RESULT_CANCELED);
+						activity.finish();
 					}
 				});
 				dialog.show();
 			}
 
-			setProgressBarIndeterminateVisibility(false);
+			activity.setProgressBarIndeterminateVisibility(false);
+			activity.load = null;
 		}
 	}
 
 	/**
-	 * Adapter for our image files.
+	 * Adapter for our image files, sectioned by date for the fast scroller.
 	 */
-	class ImageAdapter extends BaseAdapter {
+	class ImageAdapter extends BaseAdapter implements SectionIndexer {
 
 		private Context mContext;
-		private ArrayList<LoadedImage> photos = new ArrayList<LoadedImage>();
+		private int count = 0;
 
 		public ImageAdapter(Context context) {
 			mContext = context;
 		}
 
-		public void addPhoto(LoadedImage photo) {
-			photos.add(photo);
+		public void setCount(int count) {
+			this.count = count;
+			notifyDataSetChanged();
 		}
 
 		public int getCount() {
-			return photos.size();
+			return count;
 		}
 
 		public Object getItem(int position) {
-			return photos.get(position);
+			return imageIndex.getImageID(position);
 		}
 
 		public long getItemId(int position) {
@@ -294,29 +435,36 @@ public class GalleryActivity extends Activity implements OnItemClickListener {
 				imageView = (ImageView) convertView;
 			}
 			imageView.setScaleType(ImageView.ScaleType.FIT_CENTER);
-			imageView.setPadding(8, 8, 8, 8);
-			imageView.setImageBitmap(photos.get(position).getBitmap());
+			imageView.setPadding(CELL_PADDING, CELL_PADDING, CELL_PADDING, CELL_PADDING);
+			int imageID = imageIndex.getImageID(position);
+			imageView.setBackgroundColor(selected.contains(imageID) ? SELECTED_COLOR : 0);
+			if (flinging) {
+				thumbnailLoader.bindCached(imageView, imageID);
+			} else {
+				thumbnailLoader.loadInto(imageView, position, imageID, imageIndex.getDateModified(position));
+			}
 			return imageView;
 		}
-	}
 
-	/**
-	 * A LoadedImage contains the Bitmap loaded for the image.
-	 */
-	private static class LoadedImage {
-		Bitmap mBitmap;
+		public Object[] getSections() {
+			DateSections sections = imageIndex != null ? imageIndex.getSections() : null;
+			return sections != null ? sections.getLabels() : new String[0];
+		}
 
-		LoadedImage(Bitmap bitmap) {
-			mBitmap = bitmap;
+		public int getPositionForSection(int section) {
+			DateSections sections = imageIndex != null ? imageIndex.getSections() : null;
+			return sections != null ? sections.getPosition(section) : 0;
 		}
 
-		public Bitmap getBitmap() {
-			return mBitmap;
+		public int getSectionForPosition(int position) {
+			DateSections sections = imageIndex != null ? imageIndex.getSections() : null;
+			return sections != null ? sections.getSection(position) : 0;
 		}
 	}
 
 	/**
-	 * When an image is clicked, load that image as a puzzle.
+	 * When an image is clicked, load that image as a puzzle. In multi-select
+	 * mode the image is added to or removed from the selection instead.
 	 * 
 	 * @param parent
 	 * @param v
@@ -325,7 +473,16 @@ public class GalleryActivity extends Activity implements OnItemClickListener {
 	 */
 	public void onItemClick(AdapterView<?> parent, View v, int position, long id) {
 
-		Integer imageID = sequencialImageID.get(position);
+		int imageID = imageIndex.getImageID(position);
+
+		if (multiple) {
+			if (!selected.remove(imageID)) {
+				selected.add(imageID);
+			}
+			v.setBackgroundColor(selected.contains(imageID) ? SELECTED_COLOR : 0);
+			updateSelectionTitle();
+			return;
+		}
 
 		Uri uri = Uri.parse(MediaStore.Images.Media.EXTERNAL_CONTENT_URI + "/" + imageID);
 		getIntent().setData(uri);
@@ -333,6 +490,32 @@ public class GalleryActivity extends Activity implements OnItemClickListener {
 		finish();
 	}
 
+	/**
+	 * Return the selected images, the first one as the data of the result.
+	 */
+	private void finishWithSelection() {
+		if (selected.isEmpty()) {
+			setResult(RESULT_CANCELED);
+			finish();
+			return;
+		}
+		int[] imageIDs = new int[selected.size()];
+		int i = 0;
+		for (int imageID : selected) {
+			imageIDs[i++] = imageID;
+		}
+		getIntent().setData(Uri.parse(MediaStore.Images.Media.EXTERNAL_CONTENT_URI + "/" + imageIDs[0]));
+		getIntent().putExtra(EXTRA_IMAGE_IDS, imageIDs);
+		setResult(RESULT_OK, getIntent());
+		finish();
+	}
+
+	private void updateSelectionTitle() {
+		if (multiple) {
+			setTitle(selected.size() + " seleccionadas");
+		}
+	}
+
 	public static Bitmap decodeScaledBitmapFromSdCard(String filePath, int reqWidth, int reqHeight) {
 
 		// First decode with inJustDecodeBounds=true to check dimensions
@@ -0,0 +1,209 @@
+package com.tuxpan.foregroundcameragalleryplugin;
+
+import java.util.Arrays;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.provider.MediaStore;
+
+/**
+ * Position to image mapping of the gallery, newest first, kept in primitive
+ * arrays: the MediaStore _ID, DATE_TAKEN and DATE_MODIFIED of each image. The
+ * arrays are sized once from the cursor count and filled in a single pass;
+ * readers may use the positions below {@link #size()} while the index is
+ * still being filled. A filled index is never modified, changes produce a
+ * new index (see {@link #apply(ImageIndex, int[])}).
+ */
+public class ImageIndex {
+
+	static final String[] PROJECTION = { MediaStore.Images.Media._ID, MediaStore.Images.Media.DATE_TAKEN, MediaStore.Images.Media.DATE_MODIFIED };
+	static final String SORT_ORDER = MediaStore.Images.Media.DATE_TAKEN + " DESC";
+
+	private final int[] imageIDs;
+	private final long[] datesTaken;
+	private final long[] datesModified;
+	private volatile int size;
+	private volatile boolean complete;
+	private int maxImageID;
+	private long maxDateModified;
+	private DateSections sections;
+
+	ImageIndex(int capacity) {
+		imageIDs = new int[capacity];
+		datesTaken = new long[capacity];
+		datesModified = new long[capacity];
+	}
+
+	/**
+	 * Query the images of the external storage in gallery order.
+	 *
+	 * @param resolver
+	 * @param selection
+	 *            SQL WHERE clause, or null for every image
+	 * @param selectionArgs
+	 * @return the cursor, or null if the media store is not available
+	 */
+	static Cursor query(ContentResolver resolver, String selection, String[] selectionArgs) {
+		return resolver.query(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, PROJECTION, selection, selectionArgs, SORT_ORDER);
+	}
+
+	/**
+	 * Build the whole index from a cursor of
+	 * {@link #query(ContentResolver, String, String[])}.
+	 *
+	 * @param cursor
+	 * @return the index
+	 */
+	static ImageIndex build(Cursor cursor) {
+		ImageIndex index = new ImageIndex(cursor.getCount());
+		index.fill(cursor, Integer.MAX_VALUE);
+		return index;
+	}
+
+	/**
+	 * Append up to count rows of the cursor, from its current position.
+	 *
+	 * @param cursor
+	 * @param count
+	 * @return false once the cursor is exhausted
+	 */
+	boolean fill(Cursor cursor, int count) {
+		int idColumn = cursor.getColumnIndexOrThrow(MediaStore.Images.Media._ID);
+		int dateTakenColumn = cursor.getColumnIndexOrThrow(MediaStore.Images.Media.DATE_TAKEN);
+		int dateModifiedColumn = cursor.getColumnIndexOrThrow(MediaStore.Images.Media.DATE_MODIFIED);
+		int n = size;
+		int end = (int) Math.min((long) n + count, imageIDs.length);
+		while (n < end && cursor.moveToNext()) {
+			append(n++, cursor.getInt(idColumn), cursor.getLong(dateTakenColumn), cursor.getLong(dateModifiedColumn));
+		}
+		boolean more = n < imageIDs.length && !cursor.isAfterLast();
+		// Publish the new entries only once they are written.
+		size = n;
+		complete = !more;
+		return more;
+	}
+
+	/**
+	 * Build a complete index from rows in gallery order.
+	 *
+	 * @param imageIDs
+	 * @param datesTaken
+	 * @param datesModified
+	 * @return the index
+	 */
+	static ImageIndex of(int[] imageIDs, long[] datesTaken, long[] datesModified) {
+		ImageIndex index = new ImageIndex(imageIDs.length);
+		for (int i = 0; i < imageIDs.length; i++) {
+			index.append(i, imageIDs[i], datesTaken[i], datesModified[i]);
+		}
+		index.size = imageIDs.length;
+		index.complete = true;
+		return index;
+	}
+
+	private void append(int position, int imageID, long dateTaken, long dateModified) {
+		imageIDs[position] = imageID;
+		datesTaken[position] = dateTaken;
+		datesModified[position] = dateModified;
+		maxImageID = Math.max(maxImageID, imageID);
+		maxDateModified = Math.max(maxDateModified, dateModified);
+	}
+
+	/**
+	 * Merge changed images into an index.
+	 *
+	 * @param delta
+	 *            Index of the added or modified images, in gallery order.
+	 * @param removedIDs
+	 *            Sorted _IDs of the deleted images.
+	 * @return a new, complete index
+	 */
+	ImageIndex apply(ImageIndex delta, int[] removedIDs) {
+		// Modified images are dropped from their old position and merged in
+		// again like new ones.
+		int[] dropped = new int[removedIDs.length + delta.size];
+		System.arraycopy(removedIDs, 0, dropped, 0, removedIDs.length);
+		System.arraycopy(delta.imageIDs, 0, dropped, removedIDs.length, delta.size);
+		Arrays.sort(dropped);
+
+		// Dropped rows leave the end of the arrays unused.
+		ImageIndex merged = new ImageIndex(size + delta.size);
+		int n = 0;
+		int i = 0;
+		int j = 0;
+		while (i < size || j < delta.size) {
+			if (i < size && Arrays.binarySearch(dropped, imageIDs[i]) >= 0) {
+				i++;
+			} else if (j >= delta.size || (i < size && datesTaken[i] >= delta.datesTaken[j])) {
+				merged.append(n++, imageIDs[i], datesTaken[i], datesModified[i]);
+				i++;
+			} else {
+				merged.append(n++, delta.imageIDs[j], delta.datesTaken[j], delta.datesModified[j]);
+				j++;
+			}
+		}
+		merged.size = n;
+		merged.complete = true;
+		return merged;
+	}
+
+	/**
+	 * @return the number of images available
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return true if every row of the cursor is in the index
+	 */
+	public boolean isComplete() {
+		return complete;
+	}
+
+	public int getImageID(int position) {
+		return imageIDs[position];
+	}
+
+	public long getDateTaken(int position) {
+		return datesTaken[position];
+	}
+
+	public long getDateModified(int position) {
+		return datesModified[position];
+	}
+
+	/**
+	 * @return the date sections of the index, or null while it is not
+	 *         complete
+	 */
+	public synchronized DateSections getSections() {
+		if (sections == null && isComplete()) {
+			sections = DateSections.build(this);
+		}
+		return sections;
+	}
+
+	/**
+	 * @return the highest _ID in the index
+	 */
+	int getMaxImageID() {
+		return maxImageID;
+	}
+
+	/**
+	 * @return the most recent DATE_MODIFIED in the index
+	 */
+	long getMaxDateModified() {
+		return maxDateModified;
+	}
+
+	/**
+	 * @return a sorted copy of the _IDs in the index
+	 */
+	int[] getSortedImageIDs() {
+		int[] sorted = Arrays.copyOf(imageIDs, size);
+		Arrays.sort(sorted);
+		return sorted;
+	}
+}
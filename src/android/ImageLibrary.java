@@ -0,0 +1,251 @@
+package com.tuxpan.foregroundcameragalleryplugin;
+
+import java.util.Arrays;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.os.Process;
+import android.provider.MediaStore;
+import android.util.Log;
+
+/**
+ * Process-wide {@link ImageIndex} of the gallery. The index is built once and
+ * kept between gallery sessions; a {@link ContentObserver} on the media store
+ * marks it stale, and {@link #update(Listener, int)} then applies only the changes:
+ * the rows above the _ID and DATE_MODIFIED watermarks of the index are merged
+ * in, and the _IDs are only listed to find deleted images when the row count
+ * does not add up. Thumbnails of deleted or modified images are dropped from
+ * the {@link ThumbnailCache} and the {@link ThumbnailStore}.
+ */
+public class ImageLibrary extends ContentObserver {
+
+	private static final String TAG = "ImageLibrary";
+
+	/**
+	 * Receives the index while it is being built for the first time.
+	 */
+	public interface Listener {
+		void onProgress(ImageIndex index);
+	}
+
+	private static ImageLibrary instance;
+
+	private final Context context;
+	private final ContentResolver resolver;
+	private final ThumbnailCache cache;
+	private final ThumbnailStore store;
+	private final Object updateLock = new Object();
+	private volatile ImageIndex index;
+	private volatile boolean stale = true;
+	private boolean prewarming;
+
+	/**
+	 * Get the library shared by the process, watching the media store from
+	 * the first call on.
+	 *
+	 * @param context
+	 * @return the shared library
+	 */
+	public static synchronized ImageLibrary getInstance(Context context) {
+		if (instance == null) {
+			instance = new ImageLibrary(context.getApplicationContext());
+			instance.resolver.registerContentObserver(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, true, instance);
+		}
+		return instance;
+	}
+
+	ImageLibrary(Context context) {
+		super(null);
+		this.context = context;
+		this.resolver = context.getContentResolver();
+		this.cache = ThumbnailCache.getInstance(context);
+		this.store = ThumbnailStore.getInstance(context);
+	}
+
+	/**
+	 * @return the last index built, possibly stale, or null if there is none
+	 *         yet
+	 */
+	public ImageIndex getIndex() {
+		return index;
+	}
+
+	/**
+	 * @return true if the media store changed since the index was built
+	 */
+	public boolean isStale() {
+		return stale || index == null;
+	}
+
+	/**
+	 * Bring the index up to date and decode the first thumbnails of the
+	 * gallery on a background thread, so that the next gallery opens without
+	 * waiting. Does nothing if a pre-warm is already running.
+	 *
+	 * @param thumbnails
+	 *            Number of thumbnails to decode, from the top of the gallery.
+	 */
+	public synchronized void prewarm(final int thumbnails) {
+		if (prewarming) {
+			return;
+		}
+		prewarming = true;
+		new Thread(new Runnable() {
+			public void run() {
+				Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+				try {
+					ImageIndex prewarmed = update(null, Integer.MAX_VALUE);
+					if (prewarmed == null) {
+						return;
+					}
+					// Decodes queue behind anything the gallery asks for.
+					DecodeExecutor executor = DecodeExecutor.getInstance(context);
+					int count = Math.min(thumbnails, prewarmed.size());
+					for (int position = 0; position < count; position++) {
+						int imageID = prewarmed.getImageID(position);
+						if (!cache.contains(imageID)) {
+							executor.submit(imageID, prewarmed.getDateModified(position), DecodeExecutor.PRIORITY_BACKGROUND, null);
+						}
+					}
+					Log.d(TAG, "Pre-warmed " + prewarmed.size() + " images, " + count + " thumbnails");
+				} finally {
+					synchronized (ImageLibrary.this) {
+						prewarming = false;
+					}
+				}
+			}
+		}, "ImageLibrary-prewarm").start();
+	}
+
+	@Override
+	public void onChange(boolean selfChange) {
+		stale = true;
+	}
+
+	/**
+	 * Bring the index up to date with the media store. Called on a background
+	 * thread; concurrent callers wait for the running update.
+	 *
+	 * @param listener
+	 *            Gets the partial index while it is built for the first time,
+	 *            may be null.
+	 * @param chunk
+	 *            Number of rows read between two listener calls.
+	 * @return the index, or null if the media store is not available
+	 */
+	public ImageIndex update(Listener listener, int chunk) {
+		synchronized (updateLock) {
+			if (!isStale()) {
+				return index;
+			}
+			// Changes from now on need another update.
+			stale = false;
+			ImageIndex current = index;
+			ImageIndex updated = current == null ? build(listener, chunk) : applyChanges(current);
+			if (updated == null) {
+				stale = true;
+			} else {
+				// Sectioned here rather than on the main thread.
+				updated.getSections();
+				index = updated;
+			}
+			return updated;
+		}
+	}
+
+	private ImageIndex build(Listener listener, int chunk) {
+		Cursor cursor = ImageIndex.query(resolver, null, null);
+		if (cursor == null) {
+			return null;
+		}
+		try {
+			ImageIndex built = new ImageIndex(cursor.getCount());
+			while (built.fill(cursor, chunk)) {
+				if (listener != null) {
+					listener.onProgress(built);
+				}
+			}
+			return built;
+		} finally {
+			cursor.close();
+		}
+	}
+
+	private ImageIndex applyChanges(ImageIndex current) {
+		// DATE_MODIFIED has a one second resolution, so rows of the last
+		// second are read again.
+		Cursor cursor = ImageIndex.query(resolver, MediaStore.Images.Media._ID + " > ? OR " + MediaStore.Images.Media.DATE_MODIFIED + " >= ?",
+				new String[] { String.valueOf(current.getMaxImageID()), String.valueOf(current.getMaxDateModified()) });
+		if (cursor == null) {
+			return null;
+		}
+		ImageIndex delta;
+		try {
+			delta = ImageIndex.build(cursor);
+		} finally {
+			cursor.close();
+		}
+
+		int[] known = current.getSortedImageIDs();
+		int added = 0;
+		for (int i = 0; i < delta.size(); i++) {
+			int imageID = delta.getImageID(i);
+			if (Arrays.binarySearch(known, imageID) < 0) {
+				added++;
+			} else {
+				cache.remove(imageID);
+			}
+		}
+		int[] removed = findRemoved(known);
+		if (removed == null) {
+			return null;
+		}
+		for (int imageID : removed) {
+			cache.remove(imageID);
+			if (store != null) {
+				store.remove(imageID);
+			}
+		}
+		Log.d(TAG, "Index updated: " + added + " added, " + (delta.size() - added) + " modified, " + removed.length + " removed");
+		return current.apply(delta, removed);
+	}
+
+	/**
+	 * Diff the sorted _IDs of the index with the ones of the media store. The
+	 * row count alone would miss a deletion and an addition in the same
+	 * change.
+	 *
+	 * @param known
+	 *            Sorted _IDs of the index.
+	 * @return the sorted _IDs of the deleted images, or null if the media
+	 *         store is not available
+	 */
+	private int[] findRemoved(int[] known) {
+		Cursor cursor = resolver.query(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, new String[] { MediaStore.Images.Media._ID }, null, null, MediaStore.Images.Media._ID);
+		if (cursor == null) {
+			return null;
+		}
+		try {
+			int[] removed = new int[known.length];
+			int count = 0;
+			int i = 0;
+			while (cursor.moveToNext()) {
+				int imageID = cursor.getInt(0);
+				while (i < known.length && known[i] < imageID) {
+					removed[count++] = known[i++];
+				}
+				if (i < known.length && known[i] == imageID) {
+					i++;
+				}
+			}
+			while (i < known.length) {
+				removed[count++] = known[i++];
+			}
+			return Arrays.copyOf(removed, count);
+		} finally {
+			cursor.close();
+		}
+	}
+}
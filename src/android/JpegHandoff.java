@@ -0,0 +1,67 @@
+package com.tuxpan.foregroundcameragalleryplugin;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands a captured JPEG from the {@link CameraActivity} to the
+ * {@link ForegroundCameraLauncher} in memory, keyed by a token the launcher
+ * puts in the intent, so that the picture is not written to disk only to be
+ * read back. Without a token the camera writes the picture to its
+ * EXTRA_OUTPUT file as before. Only the last capture is kept, so a picture
+ * whose result never reached the launcher is dropped by the next one.
+ */
+public class JpegHandoff {
+
+	/**
+	 * String extra: the token of the handoff.
+	 */
+	public static final String EXTRA_TOKEN = "handoffToken";
+
+	private static final AtomicInteger nextToken = new AtomicInteger();
+	private static final Map<String, Capture> captures = new HashMap<String, Capture>();
+
+	/**
+	 * A captured picture.
+	 */
+	public static class Capture {
+		public final byte[] jpeg;
+		// One of the ExifInterface ORIENTATION_ values.
+		public final int orientation;
+
+		Capture(byte[] jpeg, int orientation) {
+			this.jpeg = jpeg;
+			this.orientation = orientation;
+		}
+	}
+
+	/**
+	 * @return a new token, unique in the process
+	 */
+	public static String newToken() {
+		return "capture-" + nextToken.incrementAndGet();
+	}
+
+	/**
+	 * @param token
+	 * @param jpeg
+	 *            The picture, not to be modified afterwards.
+	 * @param orientation
+	 *            One of the ExifInterface ORIENTATION_ values.
+	 */
+	public static synchronized void put(String token, byte[] jpeg, int orientation) {
+		// One camera runs at a time, the other captures are stale.
+		captures.clear();
+		captures.put(token, new Capture(jpeg, orientation));
+	}
+
+	/**
+	 * @param token
+	 * @return the picture handed over with the token, removed, or null if there
+	 *         is none
+	 */
+	public static synchronized Capture take(String token) {
+		return token != null ? captures.remove(token) : null;
+	}
+}
@@ -0,0 +1,141 @@
+package com.tuxpan.foregroundcameragalleryplugin;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import android.media.ExifInterface;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * I/O worker writing captured JPEGs to disk off the main thread. The EXIF
+ * orientation is set in memory with {@link ExifOrientation} before the single
+ * write, so the camera can hand the bytes over and finish at once. Readers of
+ * the file wait for its write with {@link #await(File)}.
+ */
+public class JpegWriter {
+
+	private static final String TAG = "JpegWriter";
+
+	private static JpegWriter instance;
+
+	private final ExecutorService executor;
+	private final Map<String, Future<Boolean>> pending = new HashMap<String, Future<Boolean>>();
+
+	public static synchronized JpegWriter getInstance() {
+		if (instance == null) {
+			instance = new JpegWriter();
+		}
+		return instance;
+	}
+
+	private JpegWriter() {
+		executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(final Runnable r) {
+				return new Thread(new Runnable() {
+					public void run() {
+						Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+						r.run();
+					}
+				}, "JpegWriter");
+			}
+		});
+	}
+
+	/**
+	 * Queue the write of a JPEG. The data must not be modified afterwards.
+	 *
+	 * @param jpeg
+	 * @param orientation
+	 *            One of the ExifInterface ORIENTATION_ values, or
+	 *            ORIENTATION_UNDEFINED to keep the orientation of the data.
+	 * @param file
+	 */
+	public synchronized void write(final byte[] jpeg, final int orientation, final File file) {
+		pending.put(file.getAbsolutePath(), executor.submit(new Callable<Boolean>() {
+			public Boolean call() {
+				try {
+					writeNow(jpeg, orientation, file);
+					return true;
+				} catch (IOException e) {
+					Log.d(TAG, "Error writing " + file + ": " + e.getMessage());
+					return false;
+				}
+			}
+		}));
+	}
+
+	/**
+	 * Wait for the queued write of a file, if any.
+	 *
+	 * @param file
+	 * @return false if the write failed
+	 */
+	public boolean await(File file) {
+		Future<Boolean> write;
+		synchronized (this) {
+			write = pending.remove(file.getAbsolutePath());
+		}
+		if (write == null) {
+			return true;
+		}
+		try {
+			return write.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} catch (ExecutionException e) {
+			Log.d(TAG, "Error writing " + file + ": " + e.getCause());
+			return false;
+		}
+	}
+
+	private static void writeNow(byte[] jpeg, int orientation, File file) throws IOException {
+		long start = System.nanoTime();
+		byte[] segment = orientation != ExifInterface.ORIENTATION_UNDEFINED ? ExifOrientation.splice(jpeg, orientation) : null;
+		write(jpeg, segment, orientation, file);
+		Log.d(TAG, "Wrote " + jpeg.length + " bytes to " + file + " in " + (System.nanoTime() - start) / 1000000 + " ms");
+	}
+
+	/**
+	 * Write a JPEG whose orientation went through
+	 * {@link ExifOrientation#splice(byte[], int)}.
+	 *
+	 * @param jpeg
+	 * @param segment
+	 *            The result of the splice, null if there was none.
+	 * @param orientation
+	 * @param file
+	 * @throws IOException
+	 */
+	static void write(byte[] jpeg, byte[] segment, int orientation, File file) throws IOException {
+		FileOutputStream fos = new FileOutputStream(file);
+		try {
+			if (segment != null && segment.length > 0) {
+				fos.write(jpeg, 0, 2);
+				fos.write(segment);
+				fos.write(jpeg, 2, jpeg.length - 2);
+			} else {
+				fos.write(jpeg);
+			}
+		} finally {
+			fos.close();
+		}
+		if (segment != null && segment.length == 0) {
+			// The EXIF data has no orientation tag to patch, let ExifInterface
+			// rewrite the file.
+			ExifInterface exif = new ExifInterface(file.getAbsolutePath());
+			exif.setAttribute(ExifInterface.TAG_ORIENTATION, String.valueOf(orientation));
+			exif.saveAttributes();
+		}
+	}
+}
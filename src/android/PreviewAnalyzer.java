@@ -0,0 +1,207 @@
+package com.tuxpan.foregroundcameragalleryplugin;
+
+import java.util.concurrent.SynchronousQueue;
+
+import android.graphics.ImageFormat;
+import android.hardware.Camera;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Feeds preview frames to {@link Analysis} stages on a worker thread. The
+ * frames are received with {@link Camera#setPreviewCallbackWithBuffer} into a
+ * fixed ring of preallocated NV21 buffers, so no array is allocated per frame. A
+ * frame arriving while the worker is busy is given back to the camera at once
+ * instead of being queued, so the analysis always sees a recent frame.
+ */
+public class PreviewAnalyzer implements Camera.PreviewCallback {
+
+	private static final String TAG = "PreviewAnalyzer";
+
+	// Buffers in the ring: one analyzed, the others filled by the camera.
+	private static final int BUFFER_COUNT = 3;
+	// Frames between two logs of the metrics.
+	private static final int METRICS_INTERVAL = 100;
+
+	/**
+	 * An analysis of preview frames, called on the worker thread.
+	 */
+	public interface Analysis {
+		/**
+		 * @param nv21
+		 *            The frame, only valid during the call.
+		 * @param width
+		 * @param height
+		 */
+		void analyze(byte[] nv21, int width, int height);
+	}
+
+	private final Analysis[] analyses;
+	private final SynchronousQueue<byte[]> handoff = new SynchronousQueue<byte[]>();
+	private final Thread worker;
+
+	private volatile Camera camera;
+	private byte[][] buffers;
+	// Buffer of the ring held by the worker, not owned by the camera.
+	private byte[] inUse;
+	private int width;
+	private int height;
+	// Arrival time of the frame being handed to the worker.
+	private volatile long frameTime;
+	private Runnable firstFrameCallback;
+
+	private int analyzed;
+	private int dropped;
+	private long totalLatency;
+	private long maxLatency;
+
+	/**
+	 * @param analyses
+	 *            The stages, run in turn on each analyzed frame.
+	 */
+	public PreviewAnalyzer(Analysis... analyses) {
+		this.analyses = analyses;
+		worker = new Thread(new Runnable() {
+			public void run() {
+				Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+				analyzeFrames();
+			}
+		}, "PreviewAnalyzer");
+		worker.start();
+	}
+
+	/**
+	 * Receive the frames of a camera. Must be called after the preview size
+	 * is set and before the preview starts. The ring is only reallocated when
+	 * the preview size changes. The buffer the worker holds is not given to
+	 * the camera, the worker gives it back once analyzed.
+	 *
+	 * @param camera
+	 * @param width
+	 *            Width of the preview.
+	 * @param height
+	 *            Height of the preview.
+	 */
+	public synchronized void attach(Camera camera, int width, int height) {
+		if (buffers == null || width != this.width || height != this.height) {
+			int size = width * height * ImageFormat.getBitsPerPixel(ImageFormat.NV21) / 8;
+			buffers = new byte[BUFFER_COUNT][size];
+			this.width = width;
+			this.height = height;
+		}
+		this.camera = camera;
+		camera.setPreviewCallbackWithBuffer(this);
+		for (byte[] buffer : buffers) {
+			if (buffer != inUse) {
+				camera.addCallbackBuffer(buffer);
+			}
+		}
+	}
+
+	/**
+	 * @param callback
+	 *            Run on the main thread when the next frame arrives.
+	 */
+	public void setFirstFrameCallback(Runnable callback) {
+		firstFrameCallback = callback;
+	}
+
+	/**
+	 * Stop receiving frames and stop the worker. Must be called before the
+	 * camera is released.
+	 */
+	public void stop() {
+		Camera camera = this.camera;
+		this.camera = null;
+		if (camera != null) {
+			camera.setPreviewCallbackWithBuffer(null);
+		}
+		worker.interrupt();
+	}
+
+	public void onPreviewFrame(byte[] data, Camera camera) {
+		frameTime = System.nanoTime();
+		if (firstFrameCallback != null) {
+			firstFrameCallback.run();
+			firstFrameCallback = null;
+		}
+		// Only taken if the worker is waiting for a frame.
+		synchronized (this) {
+			if (handoff.offer(data)) {
+				inUse = data;
+				return;
+			}
+			dropped++;
+		}
+		camera.addCallbackBuffer(data);
+	}
+
+	/**
+	 * @return true if the buffer is in the current ring
+	 */
+	private boolean isInRing(byte[] buffer) {
+		for (byte[] b : buffers) {
+			if (b == buffer) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void analyzeFrames() {
+		try {
+			while (true) {
+				byte[] frame = handoff.take();
+				long start = frameTime;
+				int width, height;
+				synchronized (this) {
+					width = this.width;
+					height = this.height;
+				}
+				// A frame of the previous preview size is skipped.
+				if (frame.length == width * height * ImageFormat.getBitsPerPixel(ImageFormat.NV21) / 8) {
+					for (Analysis analysis : analyses) {
+						analysis.analyze(frame, width, height);
+					}
+					recordLatency(System.nanoTime() - start);
+				}
+				// The buffer of a reallocated ring is dropped.
+				synchronized (this) {
+					inUse = null;
+					Camera camera = this.camera;
+					if (camera != null && isInRing(frame)) {
+						try {
+							camera.addCallbackBuffer(frame);
+						} catch (RuntimeException e) {
+							// Camera released meanwhile
+						}
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			Log.d(TAG, "Stopped, " + this);
+		}
+	}
+
+	private synchronized void recordLatency(long latency) {
+		analyzed++;
+		totalLatency += latency;
+		maxLatency = Math.max(maxLatency, latency);
+		if (analyzed % METRICS_INTERVAL == 0) {
+			Log.d(TAG, toString());
+		}
+	}
+
+	/**
+	 * @return the average time in ms from the arrival of a frame to the end of
+	 *         its analysis
+	 */
+	public synchronized float getAverageLatency() {
+		return analyzed > 0 ? totalLatency / 1000000f / analyzed : 0;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "PreviewAnalyzer[analyzed=" + analyzed + ", dropped=" + dropped + ", latency=" + getAverageLatency() + " ms, max=" + maxLatency / 1000000f + " ms]";
+	}
+}
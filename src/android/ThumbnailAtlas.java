@@ -0,0 +1,272 @@
+package com.tuxpan.foregroundcameragalleryplugin;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.ColorFilter;
+import android.graphics.Paint;
+import android.graphics.PixelFormat;
+import android.graphics.Rect;
+import android.graphics.drawable.Drawable;
+import android.util.Log;
+
+/**
+ * Opaque thumbnails packed as RGB_565 into a few large shared bitmaps (pages)
+ * of up to PAGE_CELLS x PAGE_CELLS cells, no larger than the smallest common
+ * maximum texture size so hardware acceleration can draw them. Each thumbnail
+ * is a {@link Cell} drawable that draws its part of the page by offset, so the
+ * atlas holds twice as many thumbnails as ARGB_8888 bitmaps in the same
+ * memory, in a handful of Bitmap objects. Pages are allocated as needed up to
+ * the byte budget; then the least recently used cell that is not pinned by a
+ * view is reused. A cell is only returned once drawn, and a page is written
+ * and drawn under its own lock.
+ */
+public class ThumbnailAtlas {
+
+	private static final String TAG = "ThumbnailAtlas";
+
+	// Cells per side of a page, at most.
+	private static final int PAGE_CELLS = 6;
+	// Side of a page, at most: the GL_MAX_TEXTURE_SIZE of many devices.
+	private static final int MAX_PAGE_SIDE = 2048;
+	private static final int NO_IMAGE = -1;
+
+	private final int cellSize;
+	private final int pageCells;
+	private final int maxCells;
+	private final List<Bitmap> pages = new ArrayList<Bitmap>();
+	private final ArrayDeque<Cell> free = new ArrayDeque<Cell>();
+	// image _ID -> cell, least recently used first
+	private final LinkedHashMap<Integer, Cell> cells = new LinkedHashMap<Integer, Cell>(16, 0.75f, true);
+	private final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+	private int cellCount;
+	private int hits;
+	private int misses;
+	private int evictions;
+
+	/**
+	 * @param maxBytes
+	 *            Pixel memory the pages may take.
+	 * @param cellSize
+	 *            Side of a thumbnail cell.
+	 */
+	ThumbnailAtlas(int maxBytes, int cellSize) {
+		this.cellSize = cellSize;
+		this.pageCells = Math.max(1, Math.min(PAGE_CELLS, MAX_PAGE_SIDE / cellSize));
+		this.maxCells = Math.max(pageCells * pageCells, maxBytes / (cellSize * cellSize * 2));
+	}
+
+	/**
+	 * @param imageID
+	 * @return the cell of the image, pinned until {@link #unpin(Cell)} so it
+	 *         cannot be reused before the caller shows it, or null
+	 */
+	public synchronized Cell get(int imageID) {
+		Cell cell = cells.get(imageID);
+		if (cell != null) {
+			hits++;
+			cell.pins++;
+		} else {
+			misses++;
+		}
+		return cell;
+	}
+
+	/**
+	 * @param imageID
+	 * @return true if the atlas holds the thumbnail of the image
+	 */
+	public synchronized boolean contains(int imageID) {
+		return cells.containsKey(imageID);
+	}
+
+	/**
+	 * Copy a thumbnail into a cell, scaled to the cell size.
+	 *
+	 * @param imageID
+	 * @param bitmap
+	 * @return the cell, pinned until {@link #unpin(Cell)}, or null if every
+	 *         cell is pinned
+	 */
+	public synchronized Cell put(int imageID, Bitmap bitmap) {
+		Cell cell = cells.get(imageID);
+		if (cell == null) {
+			cell = obtain();
+			if (cell == null) {
+				return null;
+			}
+			cell.imageID = imageID;
+			cells.put(imageID, cell);
+		}
+		// The UI thread may be drawing other cells of the page.
+		synchronized (cell.page) {
+			new Canvas(cell.page).drawBitmap(bitmap, null, cell.source, paint);
+		}
+		cell.pins++;
+		return cell;
+	}
+
+	/**
+	 * Keep a cell from being reused while a view shows it.
+	 *
+	 * @param cell
+	 */
+	public synchronized void pin(Cell cell) {
+		cell.pins++;
+	}
+
+	public synchronized void unpin(Cell cell) {
+		if (--cell.pins == 0 && cell.imageID == NO_IMAGE) {
+			free.push(cell);
+		}
+	}
+
+	public synchronized void remove(int imageID) {
+		Cell cell = cells.remove(imageID);
+		if (cell != null) {
+			release(cell);
+		}
+	}
+
+	/**
+	 * Drop every thumbnail. The pages are kept for the next ones.
+	 */
+	public synchronized void clear() {
+		for (Cell cell : cells.values()) {
+			release(cell);
+		}
+		cells.clear();
+	}
+
+	/**
+	 * @return bytes taken by the pages
+	 */
+	public synchronized int getSize() {
+		int size = 0;
+		for (Bitmap page : pages) {
+			size += page.getRowBytes() * page.getHeight();
+		}
+		return size;
+	}
+
+	public int getMaxSize() {
+		return maxCells * cellSize * cellSize * 2;
+	}
+
+	public synchronized int getHitCount() {
+		return hits;
+	}
+
+	public synchronized int getMissCount() {
+		return misses;
+	}
+
+	public synchronized int getEvictionCount() {
+		return evictions;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "ThumbnailAtlas[pages=" + pages.size() + ", cells=" + cells.size() + "/" + maxCells + ", hits=" + hits + ", misses=" + misses + ", evictions=" + evictions + "]";
+	}
+
+	private void release(Cell cell) {
+		cell.imageID = NO_IMAGE;
+		if (cell.pins == 0) {
+			free.push(cell);
+		}
+	}
+
+	/**
+	 * @return a free cell, from a new page if the budget allows, else the
+	 *         least recently used cell that is not pinned
+	 */
+	private Cell obtain() {
+		if (free.isEmpty() && cellCount < maxCells) {
+			addPage();
+		}
+		if (!free.isEmpty()) {
+			return free.pop();
+		}
+		for (Iterator<Cell> i = cells.values().iterator(); i.hasNext();) {
+			Cell cell = i.next();
+			if (cell.pins == 0) {
+				i.remove();
+				evictions++;
+				return cell;
+			}
+		}
+		return null;
+	}
+
+	private void addPage() {
+		int side = pageCells * cellSize;
+		Bitmap page;
+		try {
+			page = Bitmap.createBitmap(side, side, Bitmap.Config.RGB_565);
+		} catch (OutOfMemoryError e) {
+			Log.d(TAG, "Out of memory allocating atlas page " + pages.size());
+			return;
+		}
+		pages.add(page);
+		for (int row = 0; row < pageCells; row++) {
+			for (int column = 0; column < pageCells && cellCount < maxCells; column++) {
+				free.add(new Cell(page, new Rect(column * cellSize, row * cellSize, (column + 1) * cellSize, (row + 1) * cellSize)));
+				cellCount++;
+			}
+		}
+	}
+
+	/**
+	 * A thumbnail of the atlas, drawn from its page by offset.
+	 */
+	public class Cell extends Drawable {
+		final Bitmap page;
+		final Rect source;
+		private final Paint cellPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+		int imageID = NO_IMAGE;
+		int pins;
+
+		Cell(Bitmap page, Rect source) {
+			this.page = page;
+			this.source = source;
+		}
+
+		@Override
+		public void draw(Canvas canvas) {
+			synchronized (page) {
+				canvas.drawBitmap(page, source, getBounds(), cellPaint);
+			}
+		}
+
+		@Override
+		public void setAlpha(int alpha) {
+			cellPaint.setAlpha(alpha);
+		}
+
+		@Override
+		public void setColorFilter(ColorFilter colorFilter) {
+			cellPaint.setColorFilter(colorFilter);
+		}
+
+		@Override
+		public int getOpacity() {
+			return PixelFormat.OPAQUE;
+		}
+
+		@Override
+		public int getIntrinsicWidth() {
+			return cellSize;
+		}
+
+		@Override
+		public int getIntrinsicHeight() {
+			return cellSize;
+		}
+	}
+}
@@ -0,0 +1,213 @@
+package com.tuxpan.foregroundcameragalleryplugin;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.util.LruCache;
+
+/**
+ * Process-wide memory cache of gallery thumbnails, keyed by MediaStore image
+ * _ID. The cache holds at most a fixed number of bytes, derived from the
+ * memory class of the device, and evicts the least recently used thumbnails
+ * first. Evicted thumbnails are handed to the {@link BitmapPool}.
+ *
+ * In atlas mode the thumbnails are copied as RGB_565 into a
+ * {@link ThumbnailAtlas} instead, which fits twice as many of them in the
+ * same budget.
+ */
+public class ThumbnailCache {
+
+	// Fraction of the memory class the thumbnails may take.
+	private static final int MEMORY_FRACTION = 8;
+
+	private static ThumbnailCache instance;
+	private static boolean atlasEnabled;
+
+	private final LruCache<Integer, Bitmap> cache;
+	private final ThumbnailAtlas atlas;
+	private final BitmapPool pool;
+	private final Resources resources;
+
+	/**
+	 * Choose the storage of the thumbnails. Only has an effect before the
+	 * shared cache is first used.
+	 *
+	 * @param enabled
+	 *            true to pack the thumbnails in a {@link ThumbnailAtlas}
+	 */
+	public static synchronized void setAtlasEnabled(boolean enabled) {
+		atlasEnabled = enabled;
+	}
+
+	/**
+	 * Get the cache shared by every thumbnail consumer of the process.
+	 *
+	 * @param context
+	 * @return the shared cache
+	 */
+	public static synchronized ThumbnailCache getInstance(Context context) {
+		if (instance == null) {
+			ActivityManager am = (ActivityManager) context.getApplicationContext().getSystemService(Context.ACTIVITY_SERVICE);
+			int maxBytes = am.getMemoryClass() * 1024 * 1024 / MEMORY_FRACTION;
+			instance = new ThumbnailCache(maxBytes, atlasEnabled ? new ThumbnailAtlas(maxBytes, ThumbnailDecoder.getCellSize(context)) : null, BitmapPool.getInstance(context),
+					context.getApplicationContext().getResources());
+		}
+		return instance;
+	}
+
+	ThumbnailCache(int maxBytes, ThumbnailAtlas atlas, final BitmapPool pool, Resources resources) {
+		this.atlas = atlas;
+		this.pool = pool;
+		this.resources = resources;
+		cache = atlas != null ? null : new LruCache<Integer, Bitmap>(maxBytes) {
+			@Override
+			protected int sizeOf(Integer imageID, Bitmap bitmap) {
+				return bitmap.getRowBytes() * bitmap.getHeight();
+			}
+
+			@Override
+			protected void entryRemoved(boolean evicted, Integer imageID, Bitmap oldValue, Bitmap newValue) {
+				if (oldValue != newValue) {
+					pool.put(oldValue);
+				}
+			}
+		};
+	}
+
+	/**
+	 * @return the config thumbnails should be decoded to
+	 */
+	public Bitmap.Config getConfig() {
+		return atlas != null ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+	}
+
+	/**
+	 * @param imageID
+	 * @return the cached thumbnail of the image, retained until
+	 *         {@link #release(Drawable)}, or null
+	 */
+	public Drawable get(int imageID) {
+		if (atlas != null) {
+			return atlas.get(imageID);
+		}
+		// Retained under the lock evictions run in, so that no eviction hands
+		// the bitmap to the pool between the lookup and the retain.
+		synchronized (cache) {
+			Bitmap bitmap = cache.get(imageID);
+			if (bitmap == null) {
+				return null;
+			}
+			pool.retain(bitmap);
+			return new BitmapDrawable(resources, bitmap);
+		}
+	}
+
+	/**
+	 * @param imageID
+	 * @return true if the thumbnail of the image is cached
+	 */
+	public boolean contains(int imageID) {
+		if (atlas != null) {
+			return atlas.contains(imageID);
+		}
+		return cache.get(imageID) != null;
+	}
+
+	/**
+	 * Add a thumbnail, evicting the least recently used ones if the budget is
+	 * exceeded. In atlas mode the bitmap is copied and goes back to the pool.
+	 *
+	 * @param imageID
+	 * @param bitmap
+	 * @return the cached thumbnail, retained until {@link #release(Drawable)},
+	 *         or null if it could not be cached
+	 */
+	public Drawable put(int imageID, Bitmap bitmap) {
+		if (atlas != null) {
+			try {
+				return atlas.put(imageID, bitmap);
+			} finally {
+				pool.put(bitmap);
+			}
+		}
+		// Retained first, so that the put cannot evict it.
+		synchronized (cache) {
+			pool.retain(bitmap);
+			cache.put(imageID, bitmap);
+		}
+		return new BitmapDrawable(resources, bitmap);
+	}
+
+	/**
+	 * Keep a thumbnail from being reused while it is shown.
+	 *
+	 * @param thumbnail
+	 *            A thumbnail of {@link #get(int)} or {@link #put(int, Bitmap)}.
+	 */
+	public void retain(Drawable thumbnail) {
+		if (thumbnail instanceof ThumbnailAtlas.Cell) {
+			atlas.pin((ThumbnailAtlas.Cell) thumbnail);
+		} else {
+			pool.retain(((BitmapDrawable) thumbnail).getBitmap());
+		}
+	}
+
+	public void release(Drawable thumbnail) {
+		if (thumbnail instanceof ThumbnailAtlas.Cell) {
+			atlas.unpin((ThumbnailAtlas.Cell) thumbnail);
+		} else {
+			pool.release(((BitmapDrawable) thumbnail).getBitmap());
+		}
+	}
+
+	public void remove(int imageID) {
+		if (atlas != null) {
+			atlas.remove(imageID);
+		} else {
+			synchronized (cache) {
+				cache.remove(imageID);
+			}
+		}
+	}
+
+	public void clear() {
+		if (atlas != null) {
+			atlas.clear();
+		} else {
+			synchronized (cache) {
+				cache.evictAll();
+			}
+		}
+	}
+
+	public int getSize() {
+		return atlas != null ? atlas.getSize() : cache.size();
+	}
+
+	public int getMaxSize() {
+		return atlas != null ? atlas.getMaxSize() : cache.maxSize();
+	}
+
+	public int getHitCount() {
+		return atlas != null ? atlas.getHitCount() : cache.hitCount();
+	}
+
+	public int getMissCount() {
+		return atlas != null ? atlas.getMissCount() : cache.missCount();
+	}
+
+	public int getEvictionCount() {
+		return atlas != null ? atlas.getEvictionCount() : cache.evictionCount();
+	}
+
+	@Override
+	public String toString() {
+		if (atlas != null) {
+			return "ThumbnailCache[" + atlas + "]";
+		}
+		return "ThumbnailCache[bytes=" + getSize() + "/" + getMaxSize() + ", hits=" + getHitCount() + ", misses=" + getMissCount() + ", evictions=" + getEvictionCount() + "]";
+	}
+}
@@ -0,0 +1,208 @@
+package com.tuxpan.foregroundcameragalleryplugin;
+
+import java.io.File;
+import java.io.IOException;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.provider.MediaStore;
+import android.util.DisplayMetrics;
+import android.util.Log;
+
+/**
+ * Produces the grid thumbnail of an image: from the {@link ThumbnailStore}
+ * when it has an up to date one, otherwise decoded at the size of a grid cell
+ * and stored for the next time. The source is the MediaStore MINI_KIND
+ * thumbnail when there is one large enough for the cell, else the thumbnail
+ * embedded in the EXIF data of the file (see {@link ExifThumbnailReader}),
+ * else the original file. No source makes MediaStore generate a thumbnail,
+ * which would decode the whole original. The source is subsampled with
+ * {@link GalleryActivity#calculateInSampleSize} and then center-cropped to
+ * the cell in a single scale.
+ */
+public class ThumbnailDecoder implements DecodeExecutor.Decoder {
+
+	private static final String TAG = "ThumbnailDecoder";
+
+	// Size of the MediaStore MINI_KIND thumbnails.
+	private static final int MINI_KIND_WIDTH = 512;
+	private static final int MINI_KIND_HEIGHT = 384;
+	// Largest upscale of a thumbnail source to the cell. MINI_KIND serves cells
+	// up to 576 px. The 160x120 EXIF thumbnails of older cameras only serve
+	// cells up to 180 px; the 320x240 and larger ones of many current cameras
+	// serve 1080p grids.
+	private static final float MAX_UPSCALE = 1.5f;
+
+	private final ContentResolver resolver;
+	private final ThumbnailStore store;
+	private final BitmapPool pool;
+	private final Bitmap.Config config;
+	private final int cellSize;
+	private final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+	/**
+	 * @param context
+	 * @param config
+	 *            Config of the thumbnails, RGB_565 for the opaque thumbnails of
+	 *            a {@link ThumbnailAtlas}.
+	 */
+	public ThumbnailDecoder(Context context, Bitmap.Config config) {
+		this.resolver = context.getApplicationContext().getContentResolver();
+		this.store = ThumbnailStore.getInstance(context);
+		this.pool = BitmapPool.getInstance(context);
+		this.config = config;
+		this.cellSize = getCellSize(context);
+	}
+
+	/**
+	 * @param context
+	 * @return the side in pixels of the thumbnails of the gallery grid, from
+	 *         the display width, the column count and the cell padding
+	 */
+	static int getCellSize(Context context) {
+		DisplayMetrics metrics = context.getResources().getDisplayMetrics();
+		int width = Math.min(metrics.widthPixels, metrics.heightPixels);
+		return Math.max(1, width / GalleryActivity.NUM_COLUMNS - 2 * GalleryActivity.CELL_PADDING);
+	}
+
+	/**
+	 * Read the thumbnail of an image from the store, or decode it at the cell
+	 * size and store it. Called on decode threads.
+	 *
+	 * @param imageID
+	 * @param dateModified
+	 * @return the thumbnail or null if there is none
+	 */
+	public Bitmap decode(int imageID, long dateModified) {
+		if (store != null) {
+			Bitmap stored = store.get(imageID, dateModified);
+			if (stored != null) {
+				if (stored.getWidth() == cellSize && stored.getHeight() == cellSize) {
+					return stored;
+				}
+				// Stored for another display
+				pool.put(stored);
+			}
+		}
+		Bitmap bitmap = null;
+		try {
+			bitmap = decodeSource(imageID);
+			if (bitmap == null) {
+				return null;
+			}
+			// Center crop to the cell in one scale.
+			int side = Math.min(bitmap.getWidth(), bitmap.getHeight());
+			int left = (bitmap.getWidth() - side) / 2;
+			int top = (bitmap.getHeight() - side) / 2;
+			Bitmap newBitmap = pool.get(cellSize, cellSize, config);
+			new Canvas(newBitmap).drawBitmap(bitmap, new Rect(left, top, left + side, top + side), new Rect(0, 0, cellSize, cellSize), paint);
+			if (store != null) {
+				store.put(imageID, dateModified, newBitmap);
+			}
+			return newBitmap;
+		} catch (OutOfMemoryError e) {
+			Log.d(TAG, "Out of memory decoding thumbnail " + imageID);
+			pool.clear();
+			return null;
+		} finally {
+			pool.put(bitmap);
+		}
+	}
+
+	/**
+	 * @param imageID
+	 * @return the smallest available image at least as large as the cell, or
+	 *         null
+	 */
+	private Bitmap decodeSource(int imageID) {
+		// Slightly upscaled, MINI_KIND still serves the cells of 1440p grids.
+		// The file is decoded directly: getThumbnail would decode the whole
+		// original to create a missing one, even when only its file is gone.
+		if (cellSize <= MINI_KIND_HEIGHT * MAX_UPSCALE) {
+			String miniPath = getMiniThumbnailPath(imageID);
+			if (miniPath != null) {
+				BitmapFactory.Options options = new BitmapFactory.Options();
+				options.outWidth = MINI_KIND_WIDTH;
+				options.outHeight = MINI_KIND_HEIGHT;
+				options.inSampleSize = GalleryActivity.calculateInSampleSize(options, cellSize, cellSize);
+				Bitmap mini = BitmapFactory.decodeFile(miniPath, options);
+				if (mini != null) {
+					return mini;
+				}
+			}
+		}
+		String path = getPath(imageID);
+		if (path == null) {
+			return null;
+		}
+		Bitmap embedded = decodeExifThumbnail(path);
+		if (embedded != null) {
+			return embedded;
+		}
+		return GalleryActivity.decodeScaledBitmapFromSdCard(path, cellSize, cellSize);
+	}
+
+	/**
+	 * @param path
+	 * @return the thumbnail embedded in the EXIF data of the file, or null if
+	 *         there is none or it is too small for the cell
+	 */
+	private Bitmap decodeExifThumbnail(String path) {
+		byte[] jpeg;
+		try {
+			jpeg = ExifThumbnailReader.read(path);
+		} catch (IOException e) {
+			Log.d(TAG, "Error reading EXIF thumbnail of " + path + ": " + e.getMessage());
+			return null;
+		}
+		if (jpeg == null) {
+			return null;
+		}
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inJustDecodeBounds = true;
+		BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, options);
+		if (Math.min(options.outWidth, options.outHeight) * MAX_UPSCALE < cellSize) {
+			return null;
+		}
+		options.inSampleSize = GalleryActivity.calculateInSampleSize(options, cellSize, cellSize);
+		options.inJustDecodeBounds = false;
+		return BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, options);
+	}
+
+	/**
+	 * @param imageID
+	 * @return the file of the MINI_KIND thumbnail of the image, or null if
+	 *         MediaStore has not created it
+	 */
+	private String getMiniThumbnailPath(int imageID) {
+		Cursor cursor = MediaStore.Images.Thumbnails.queryMiniThumbnail(resolver, imageID, MediaStore.Images.Thumbnails.MINI_KIND, new String[] { MediaStore.Images.Thumbnails.DATA });
+		if (cursor == null) {
+			return null;
+		}
+		try {
+			String path = cursor.moveToFirst() ? cursor.getString(0) : null;
+			return path != null && new File(path).isFile() ? path : null;
+		} finally {
+			cursor.close();
+		}
+	}
+
+	private String getPath(int imageID) {
+		Cursor cursor = resolver.query(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, new String[] { MediaStore.Images.Media.DATA }, MediaStore.Images.Media._ID + " = ?",
+				new String[] { String.valueOf(imageID) }, null);
+		if (cursor == null) {
+			return null;
+		}
+		try {
+			return cursor.moveToFirst() ? cursor.getString(0) : null;
+		} finally {
+			cursor.close();
+		}
+	}
+}
@@ -0,0 +1,179 @@
+package com.tuxpan.foregroundcameragalleryplugin;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import android.content.Context;
+import android.graphics.drawable.Drawable;
+import android.util.SparseIntArray;
+import android.widget.ImageView;
+
+/**
+ * Loads gallery thumbnails on demand. Only the positions the grid asks for
+ * (the visible cells plus a small prefetch window) are decoded, and requests
+ * for positions that leave the window are cancelled. Decoding runs on the
+ * shared {@link DecodeExecutor}; decoded thumbnails are kept in the shared
+ * {@link ThumbnailCache} and persisted in the {@link ThumbnailStore}, so they
+ * are not decoded again on the next visit. The loader tells the cache which
+ * thumbnails are on screen.
+ */
+public class ThumbnailLoader implements DecodeExecutor.Listener {
+
+	private final ThumbnailCache cache;
+	private final DecodeExecutor executor;
+	// position -> image _ID of the requests this loader waits for
+	private final SparseIntArray requested = new SparseIntArray();
+	private final Map<ImageView, Drawable> bound = new HashMap<ImageView, Drawable>();
+	private final Map<ImageView, Integer> targets = new HashMap<ImageView, Integer>();
+
+	public ThumbnailLoader(Context context) {
+		this.cache = ThumbnailCache.getInstance(context);
+		this.executor = DecodeExecutor.getInstance(context);
+	}
+
+	/**
+	 * Bind the thumbnail of the given position to the view, decoding it in the
+	 * background if it is not loaded yet.
+	 *
+	 * @param view
+	 *            The grid cell.
+	 * @param position
+	 *            Adapter position of the cell.
+	 * @param imageID
+	 *            MediaStore _ID of the image at that position.
+	 * @param dateModified
+	 *            MediaStore DATE_MODIFIED of the image.
+	 */
+	public void loadInto(ImageView view, int position, int imageID, long dateModified) {
+		Drawable thumbnail = cache.get(imageID);
+		bind(view, thumbnail);
+		if (thumbnail != null) {
+			// Now retained by the binding
+			cache.release(thumbnail);
+			targets.remove(view);
+			return;
+		}
+		targets.put(view, imageID);
+		request(position, imageID, dateModified, DecodeExecutor.PRIORITY_VISIBLE);
+	}
+
+	/**
+	 * Bind the thumbnail of an image only if it is already loaded, without
+	 * decoding anything. Used for the rows flung past.
+	 *
+	 * @param view
+	 * @param imageID
+	 */
+	public void bindCached(ImageView view, int imageID) {
+		targets.remove(view);
+		Drawable thumbnail = cache.get(imageID);
+		bind(view, thumbnail);
+		if (thumbnail != null) {
+			cache.release(thumbnail);
+		}
+	}
+
+	/**
+	 * Decode the thumbnail of a position that is not on screen yet, so that it
+	 * is ready when the user scrolls to it.
+	 *
+	 * @param position
+	 * @param imageID
+	 * @param dateModified
+	 */
+	public void prefetch(int position, int imageID, long dateModified) {
+		if (!cache.contains(imageID)) {
+			request(position, imageID, dateModified, DecodeExecutor.PRIORITY_PREFETCH);
+		}
+	}
+
+	/**
+	 * Cancel pending requests outside of [from, to).
+	 *
+	 * @param from
+	 *            First position to keep.
+	 * @param to
+	 *            Position after the last one to keep.
+	 */
+	public void retainRange(int from, int to) {
+		for (int i = requested.size() - 1; i >= 0; i--) {
+			int position = requested.keyAt(i);
+			if (position < from || position >= to) {
+				int imageID = requested.valueAt(i);
+				requested.delete(position);
+				if (!isRequested(imageID)) {
+					executor.cancel(imageID, this);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Bind a decoded thumbnail to the cells still waiting for it.
+	 *
+	 * @see DecodeExecutor.Listener#onDecoded(int,
+	 *      android.graphics.drawable.Drawable)
+	 */
+	public void onDecoded(int imageID, Drawable thumbnail) {
+		for (int i = requested.size() - 1; i >= 0; i--) {
+			if (requested.valueAt(i) == imageID) {
+				requested.delete(requested.keyAt(i));
+			}
+		}
+		for (Map.Entry<ImageView, Integer> e : new HashMap<ImageView, Integer>(targets).entrySet()) {
+			if (e.getValue() == imageID) {
+				targets.remove(e.getKey());
+				bind(e.getKey(), thumbnail);
+			}
+		}
+	}
+
+	/**
+	 * Clear every view the loader bound a thumbnail to, so the thumbnails can
+	 * be reused once they leave the cache.
+	 */
+	public void unbindAll() {
+		for (Map.Entry<ImageView, Drawable> e : bound.entrySet()) {
+			e.getKey().setImageDrawable(null);
+			cache.release(e.getValue());
+		}
+		bound.clear();
+		targets.clear();
+	}
+
+	/**
+	 * Cancel every pending request.
+	 */
+	public void cancelAll() {
+		executor.cancelAll(this);
+		requested.clear();
+	}
+
+	private boolean isRequested(int imageID) {
+		for (int i = 0; i < requested.size(); i++) {
+			if (requested.valueAt(i) == imageID) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void bind(ImageView view, Drawable thumbnail) {
+		Drawable previous = thumbnail != null ? bound.put(view, thumbnail) : bound.remove(view);
+		if (previous == thumbnail) {
+			return;
+		}
+		if (thumbnail != null) {
+			cache.retain(thumbnail);
+		}
+		view.setImageDrawable(thumbnail);
+		if (previous != null) {
+			cache.release(previous);
+		}
+	}
+
+	private void request(int position, int imageID, long dateModified, int priority) {
+		requested.put(position, imageID);
+		executor.submit(imageID, dateModified, priority, this);
+	}
+}
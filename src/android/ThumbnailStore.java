@@ -0,0 +1,440 @@
+package com.tuxpan.foregroundcameragalleryplugin;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Persistent store of already scaled gallery thumbnails.
+ *
+ * The pixels live in one append-only pack file, and each read maps only the
+ * record it needs, so the thumbnail is copied straight into a pooled bitmap
+ * without decoding. A second, append-only index file maps each image
+ * _ID to the DATE_MODIFIED it was generated from and to its record in the
+ * pack, so a thumbnail is only served while the image it comes from is
+ * unchanged. The live records are capped at {@link #MAX_BYTES}, beyond which
+ * the least recently used ones are evicted. Superseded, stale and evicted
+ * records are dropped by a background compaction once they take a good share
+ * of the pack.
+ */
+public class ThumbnailStore {
+
+	private static final String TAG = "ThumbnailStore";
+
+	private static final String DIRECTORY = "thumbnails";
+	private static final String PACK_FILE = "thumbs.pack";
+	private static final String INDEX_FILE = "thumbs.idx";
+
+	// id, dateModified, width, height, config, length
+	private static final int RECORD_HEADER = 4 + 8 + 4 + 4 + 4 + 4;
+	// id, dateModified, offset, length
+	private static final int INDEX_ENTRY = 4 + 8 + 8 + 4;
+
+	private static final int CONFIG_ARGB_8888 = 0;
+	private static final int CONFIG_RGB_565 = 1;
+
+	// Live records kept, some 500 RGB_565 thumbnails of 256 px cells. Reads
+	// map one record, so the pack size never limits the mapping.
+	static final long MAX_BYTES = 64 * 1024 * 1024;
+	// Nothing is appended past this size until a compaction shrinks the pack.
+	private static final long MAX_PACK_BYTES = 2 * MAX_BYTES;
+
+	// Compact once dead records take a quarter of the pack, and at least 1 MB.
+	private static final int COMPACT_RATIO = 4;
+	private static final long COMPACT_MIN_BYTES = 1024 * 1024;
+
+	private static ThumbnailStore instance;
+
+	private final File directory;
+	private final BitmapPool pool;
+	// In access order, the least recently used first.
+	private final LinkedHashMap<Integer, Entry> entries = new LinkedHashMap<Integer, Entry>(16, 0.75f, true);
+	private RandomAccessFile pack;
+	private RandomAccessFile index;
+	private long packLength;
+	private long liveBytes;
+	private boolean compacting;
+
+	/**
+	 * Get the store shared by every thumbnail consumer of the process.
+	 *
+	 * @param context
+	 * @return the shared store, or null if it could not be opened
+	 */
+	public static synchronized ThumbnailStore getInstance(Context context) {
+		if (instance == null) {
+			ThumbnailStore store = new ThumbnailStore(new File(context.getApplicationContext().getCacheDir(), DIRECTORY), BitmapPool.getInstance(context));
+			try {
+				store.open();
+				instance = store;
+			} catch (IOException e) {
+				Log.d(TAG, "Thumbnail store not available: " + e.getMessage());
+				store.close();
+			}
+		}
+		return instance;
+	}
+
+	ThumbnailStore(File directory, BitmapPool pool) {
+		this.directory = directory;
+		this.pool = pool;
+	}
+
+	/**
+	 * Read the thumbnail of an image, if the store has one generated from the
+	 * given version of the image.
+	 *
+	 * @param imageID
+	 * @param dateModified
+	 *            DATE_MODIFIED of the image.
+	 * @return the thumbnail, or null if it is missing, stale or unreadable
+	 */
+	public Bitmap get(int imageID, long dateModified) {
+		Entry entry;
+		ByteBuffer record;
+		synchronized (this) {
+			entry = entries.get(imageID);
+			if (entry == null || pack == null) {
+				return null;
+			}
+			if (entry.dateModified != dateModified) {
+				remove(imageID);
+				return null;
+			}
+			try {
+				// The mapping stays valid after a compaction closes the pack.
+				record = pack.getChannel().map(FileChannel.MapMode.READ_ONLY, entry.offset, entry.length);
+			} catch (IOException e) {
+				Log.d(TAG, "Error reading thumbnail " + imageID + ": " + e.getMessage());
+				remove(imageID);
+				return null;
+			} catch (RuntimeException e) {
+				Log.d(TAG, "Error reading thumbnail " + imageID + ": " + e);
+				remove(imageID);
+				return null;
+			}
+		}
+
+		// Copy outside the lock, into a pooled bitmap when one fits.
+		int width = record.getInt(12);
+		int height = record.getInt(16);
+		int config = record.getInt(20);
+		int length = record.getInt(24);
+		if (record.getInt(0) != imageID || length != entry.length - RECORD_HEADER || width <= 0 || height <= 0) {
+			dropUnreadable(imageID, entry);
+			return null;
+		}
+		Bitmap bitmap = pool.get(width, height, config == CONFIG_RGB_565 ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888);
+		if (bitmap.getRowBytes() * height != length) {
+			pool.put(bitmap);
+			dropUnreadable(imageID, entry);
+			return null;
+		}
+		try {
+			record.position(RECORD_HEADER);
+			bitmap.copyPixelsFromBuffer(record);
+		} catch (RuntimeException e) {
+			// Truncated underneath the mapping
+			Log.d(TAG, "Error reading thumbnail " + imageID + ": " + e);
+			pool.put(bitmap);
+			dropUnreadable(imageID, entry);
+			return null;
+		}
+		return bitmap;
+	}
+
+	/**
+	 * Append the thumbnail of an image to the store, evicting the least
+	 * recently used thumbnails beyond {@link #MAX_BYTES}.
+	 *
+	 * @param imageID
+	 * @param dateModified
+	 *            DATE_MODIFIED of the image the thumbnail was generated from.
+	 * @param bitmap
+	 */
+	public void put(int imageID, long dateModified, Bitmap bitmap) {
+		int config;
+		if (bitmap.getConfig() == Bitmap.Config.ARGB_8888) {
+			config = CONFIG_ARGB_8888;
+		} else if (bitmap.getConfig() == Bitmap.Config.RGB_565) {
+			config = CONFIG_RGB_565;
+		} else {
+			return;
+		}
+		// Copy outside the lock.
+		int pixels = bitmap.getRowBytes() * bitmap.getHeight();
+		ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER + pixels);
+		record.putInt(imageID).putLong(dateModified).putInt(bitmap.getWidth()).putInt(bitmap.getHeight()).putInt(config).putInt(pixels);
+		bitmap.copyPixelsToBuffer(record);
+		record.flip();
+
+		synchronized (this) {
+			if (pack == null) {
+				return;
+			}
+			if (packLength + record.limit() > MAX_PACK_BYTES) {
+				// Not cached until the pack is compacted
+				scheduleCompactionIfNeeded();
+				return;
+			}
+			try {
+				long offset = packLength;
+				pack.getChannel().write(record, offset);
+				packLength += record.limit();
+
+				ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY);
+				entry.putInt(imageID).putLong(dateModified).putLong(offset).putInt(record.limit());
+				entry.flip();
+				index.getChannel().write(entry, index.length());
+
+				Entry previous = entries.put(imageID, new Entry(dateModified, offset, record.limit()));
+				liveBytes += record.limit();
+				if (previous != null) {
+					liveBytes -= previous.length;
+				}
+				evict();
+				scheduleCompactionIfNeeded();
+			} catch (IOException e) {
+				Log.d(TAG, "Error writing thumbnail " + imageID + ": " + e.getMessage());
+			} catch (RuntimeException e) {
+				Log.d(TAG, "Error writing thumbnail " + imageID + ": " + e);
+			}
+		}
+	}
+
+	/**
+	 * Forget the thumbnail of an image.
+	 *
+	 * @param imageID
+	 */
+	public synchronized void remove(int imageID) {
+		Entry entry = entries.remove(imageID);
+		if (entry != null) {
+			liveBytes -= entry.length;
+			scheduleCompactionIfNeeded();
+		}
+	}
+
+	/**
+	 * @return the number of thumbnails in the store
+	 */
+	public synchronized int getCount() {
+		return entries.size();
+	}
+
+	private void open() throws IOException {
+		directory.mkdirs();
+		pack = new RandomAccessFile(new File(directory, PACK_FILE), "rw");
+		index = new RandomAccessFile(new File(directory, INDEX_FILE), "rw");
+		packLength = pack.length();
+		liveBytes = 0;
+		entries.clear();
+
+		// Records are written before their index entry, so every complete
+		// entry points to a complete record. A torn last entry is dropped.
+		int validLength = (int) (index.length() / INDEX_ENTRY) * INDEX_ENTRY;
+		byte[] data = new byte[validLength];
+		index.readFully(data);
+		if (index.length() != validLength) {
+			index.setLength(validLength);
+		}
+
+		ByteBuffer in = ByteBuffer.wrap(data);
+		while (in.hasRemaining()) {
+			int imageID = in.getInt();
+			long dateModified = in.getLong();
+			long offset = in.getLong();
+			int length = in.getInt();
+			if (offset + length > packLength) {
+				continue;
+			}
+			Entry previous = entries.put(imageID, new Entry(dateModified, offset, length));
+			if (previous != null) {
+				liveBytes -= previous.length;
+			}
+			liveBytes += length;
+		}
+		evict();
+		scheduleCompactionIfNeeded();
+	}
+
+	private void close() {
+		try {
+			if (pack != null) {
+				pack.close();
+			}
+			if (index != null) {
+				index.close();
+			}
+		} catch (IOException e) {
+			Log.d(TAG, "Error closing thumbnail store: " + e.getMessage());
+		}
+		pack = null;
+		index = null;
+		entries.clear();
+	}
+
+	/**
+	 * Drop the least recently used thumbnails until the live records fit in
+	 * {@link #MAX_BYTES}.
+	 */
+	private void evict() {
+		Iterator<Entry> it = entries.values().iterator();
+		while (liveBytes > MAX_BYTES && it.hasNext()) {
+			liveBytes -= it.next().length;
+			it.remove();
+		}
+	}
+
+	private synchronized void dropUnreadable(int imageID, Entry entry) {
+		Log.d(TAG, "Dropping unreadable thumbnail " + imageID);
+		// Unless it was replaced meanwhile
+		if (entries.get(imageID) == entry) {
+			remove(imageID);
+		}
+	}
+
+	/**
+	 * @return the bytes of the entry's record
+	 */
+	private static byte[] read(FileChannel channel, Entry entry) throws IOException {
+		ByteBuffer record = ByteBuffer.allocate(entry.length);
+		while (record.hasRemaining()) {
+			if (channel.read(record, entry.offset + record.position()) < 0) {
+				throw new EOFException("Truncated record at " + entry.offset);
+			}
+		}
+		return record.array();
+	}
+
+	private void scheduleCompactionIfNeeded() {
+		long deadBytes = packLength - liveBytes;
+		if (compacting || deadBytes < COMPACT_MIN_BYTES || deadBytes * COMPACT_RATIO < packLength) {
+			return;
+		}
+		compacting = true;
+		new Thread(new Runnable() {
+			public void run() {
+				Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+				try {
+					compact();
+				} catch (IOException e) {
+					Log.d(TAG, "Error compacting thumbnail store: " + e.getMessage());
+				} catch (RuntimeException e) {
+					Log.d(TAG, "Error compacting thumbnail store: " + e);
+				} finally {
+					synchronized (ThumbnailStore.this) {
+						compacting = false;
+					}
+				}
+			}
+		}, "ThumbnailStore-compact").start();
+	}
+
+	/**
+	 * Rewrite the live records into a new pack and index, in the order of
+	 * their last use. The bulk of the copy reads the part of the pack written
+	 * before the compaction started, which never changes, so the store stays
+	 * usable meanwhile.
+	 */
+	private void compact() throws IOException {
+		Map<Integer, Entry> snapshot;
+		FileChannel source;
+		synchronized (this) {
+			if (pack == null) {
+				return;
+			}
+			snapshot = new LinkedHashMap<Integer, Entry>(entries);
+			source = pack.getChannel();
+		}
+
+		File newPackFile = new File(directory, PACK_FILE + ".tmp");
+		File newIndexFile = new File(directory, INDEX_FILE + ".tmp");
+		RandomAccessFile newPack = new RandomAccessFile(newPackFile, "rw");
+		RandomAccessFile newIndex = new RandomAccessFile(newIndexFile, "rw");
+		try {
+			newPack.setLength(0);
+			newIndex.setLength(0);
+			Map<Integer, Entry> compacted = new LinkedHashMap<Integer, Entry>();
+			long offset = 0;
+			for (Map.Entry<Integer, Entry> e : snapshot.entrySet()) {
+				offset = copy(source, e.getKey(), e.getValue(), newPack, offset, compacted);
+			}
+
+			synchronized (this) {
+				if (pack == null) {
+					return;
+				}
+				// Pick up whatever changed while copying. Entries are replaced,
+				// never mutated, so identity tells whether an entry is the one
+				// that was copied.
+				Map<Integer, Entry> live = new LinkedHashMap<Integer, Entry>();
+				for (Map.Entry<Integer, Entry> e : entries.entrySet()) {
+					Entry current = e.getValue();
+					if (snapshot.get(e.getKey()) == current) {
+						live.put(e.getKey(), compacted.get(e.getKey()));
+					} else {
+						offset = copy(source, e.getKey(), current, newPack, offset, live);
+					}
+				}
+				ByteBuffer indexEntries = ByteBuffer.allocate(live.size() * INDEX_ENTRY);
+				for (Map.Entry<Integer, Entry> e : live.entrySet()) {
+					Entry entry = e.getValue();
+					indexEntries.putInt(e.getKey()).putLong(entry.dateModified).putLong(entry.offset).putInt(entry.length);
+				}
+				indexEntries.flip();
+				newIndex.getChannel().write(indexEntries, 0);
+				newPack.close();
+				newIndex.close();
+
+				close();
+				if (newPackFile.renameTo(new File(directory, PACK_FILE)) && newIndexFile.renameTo(new File(directory, INDEX_FILE))) {
+					open();
+				} else {
+					// Half replaced: start over rather than serve mismatched records.
+					Log.d(TAG, "Cannot replace thumbnail pack, clearing the store");
+					new File(directory, PACK_FILE).delete();
+					new File(directory, INDEX_FILE).delete();
+					open();
+				}
+			}
+		} finally {
+			newPack.close();
+			newIndex.close();
+			newPackFile.delete();
+			newIndexFile.delete();
+		}
+	}
+
+	private static long copy(FileChannel source, int imageID, Entry entry, RandomAccessFile newPack, long offset, Map<Integer, Entry> target) throws IOException {
+		newPack.getChannel().write(ByteBuffer.wrap(read(source, entry)), offset);
+		target.put(imageID, new Entry(entry.dateModified, offset, entry.length));
+		return offset + entry.length;
+	}
+
+	/**
+	 * Location of a thumbnail record in the pack.
+	 */
+	private static class Entry {
+		final long dateModified;
+		final long offset;
+		final int length;
+
+		Entry(long dateModified, long offset, int length) {
+			this.dateModified = dateModified;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+}
@@ -0,0 +1,118 @@
+package com.tuxpan.foregroundcameragalleryplugin;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Base64;
+import java.util.Random;
+
+/**
+ * Bytes allocated and time taken to Base64 encode a JPEG as the DATA_URL path
+ * does, on a HotSpot JVM:
+ *
+ * <pre>
+ * java -cp ... com.tuxpan.foregroundcameragalleryplugin.Base64BufferBenchmark
+ * </pre>
+ *
+ * The JPEG is written in 8 KB chunks, as Bitmap.compress() writes to its
+ * stream, into a ByteArrayOutputStream encoded afterwards, the former path, or
+ * straight into a {@link Base64Buffer} sized from the former estimate or from
+ * {@link Base64Buffer#getJpegSizeBound}.
+ */
+public class Base64BufferBenchmark {
+
+	private static final int CHUNK = 8192;
+	private static final int WARMUP = 20;
+	private static final int RUNS = 50;
+
+	private interface Encoder {
+		String encode(byte[] jpeg, int width, int height, int quality) throws IOException;
+	}
+
+	private static final Encoder COPIES = new Encoder() {
+		public String encode(byte[] jpeg, int width, int height, int quality) throws IOException {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			write(jpeg, out);
+			byte[] code = Base64.getEncoder().encode(out.toByteArray());
+			return new String(code, "US-ASCII");
+		}
+	};
+
+	private static final Encoder ESTIMATE = new Encoder() {
+		public String encode(byte[] jpeg, int width, int height, int quality) throws IOException {
+			Base64Buffer out = new Base64Buffer((int) ((long) width * height * (quality + 20) / 200));
+			write(jpeg, out);
+			return out.toString();
+		}
+	};
+
+	private static final Encoder BOUND = new Encoder() {
+		public String encode(byte[] jpeg, int width, int height, int quality) throws IOException {
+			Base64Buffer out = new Base64Buffer(Base64Buffer.getJpegSizeBound(width, height, quality));
+			write(jpeg, out);
+			return out.toString();
+		}
+	};
+
+	private static void write(byte[] jpeg, OutputStream out) throws IOException {
+		for (int off = 0; off < jpeg.length; off += CHUNK) {
+			out.write(jpeg, off, Math.min(CHUNK, jpeg.length - off));
+		}
+	}
+
+	private static long allocatedBytes() {
+		return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	private static void run(String name, Encoder encoder, byte[] jpeg, int width, int height, int quality) throws IOException {
+		String expected = Base64.getEncoder().encodeToString(jpeg);
+		for (int i = 0; i < WARMUP; i++) {
+			if (!encoder.encode(jpeg, width, height, quality).equals(expected)) {
+				throw new AssertionError(name + " encoded wrongly");
+			}
+		}
+		long allocated = allocatedBytes();
+		long start = System.nanoTime();
+		for (int i = 0; i < RUNS; i++) {
+			encoder.encode(jpeg, width, height, quality);
+		}
+		long time = System.nanoTime() - start;
+		allocated = allocatedBytes() - allocated;
+		System.out.printf("  %-9s %8.2f MB allocated %8.2f ms%n", name, allocated / RUNS / 1048576.0, time / RUNS / 1000000.0);
+	}
+
+	/**
+	 * @return a photo-like image: smooth shapes with some grain
+	 */
+	private static BufferedImage photo(int width, int height, long seed) {
+		Random random = new Random(seed);
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				double v = 128 + 60 * Math.sin(x * 0.02 + y * 0.01) + 40 * Math.sin(x * 0.3) * Math.cos(y * 0.2) + random.nextGaussian() * 12;
+				int c = (int) Math.max(0, Math.min(255, v));
+				image.setRGB(x, y, (c << 16) | ((255 - c) << 8) | (c / 2));
+			}
+		}
+		return image;
+	}
+
+	public static void main(String[] args) throws IOException {
+		int width = 2048;
+		int height = 1536;
+		BufferedImage[] images = { photo(width, height, 1), Base64BufferTest.noise(width, height, 2) };
+		String[] names = { "photo", "noise" };
+		for (int i = 0; i < images.length; i++) {
+			for (int quality : new int[] { 50, 80, 100 }) {
+				byte[] jpeg = Base64BufferTest.compress(images[i], quality);
+				System.out.printf("%s %dx%d q%d: %.2f MB JPEG, %.2f MB Base64, bound %.2f MB%n", names[i], width, height, quality, jpeg.length / 1048576.0,
+						Base64Buffer.getEncodedLength(jpeg.length) / 1048576.0, Base64Buffer.getJpegSizeBound(width, height, quality) / 1048576.0);
+				run("copies", COPIES, jpeg, width, height, quality);
+				run("estimate", ESTIMATE, jpeg, width, height, quality);
+				run("bound", BOUND, jpeg, width, height, quality);
+			}
+		}
+	}
+}
@@ -0,0 +1,111 @@
+package com.tuxpan.foregroundcameragalleryplugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Base64;
+import java.util.Random;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+import org.junit.Test;
+
+public class Base64BufferTest {
+
+	private static String encode(byte[] data) {
+		return Base64.getEncoder().encodeToString(data);
+	}
+
+	/**
+	 * @return the image compressed to JPEG at the quality, with 4:2:0 chroma
+	 *         like Bitmap.compress()
+	 */
+	static byte[] compress(BufferedImage image, int quality) throws IOException {
+		ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+		ImageWriteParam param = writer.getDefaultWriteParam();
+		param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+		param.setCompressionQuality(quality / 100f);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ImageOutputStream stream = ImageIO.createImageOutputStream(out);
+		try {
+			writer.setOutput(stream);
+			writer.write(null, new IIOImage(image, null, null), param);
+		} finally {
+			stream.close();
+			writer.dispose();
+		}
+		return out.toByteArray();
+	}
+
+	static BufferedImage noise(int width, int height, long seed) {
+		Random random = new Random(seed);
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				image.setRGB(x, y, random.nextInt(0x1000000));
+			}
+		}
+		return image;
+	}
+
+	@Test
+	public void encodesLikeTheJdk() {
+		Random random = new Random(1);
+		for (int length = 0; length < 100; length++) {
+			byte[] data = new byte[length];
+			random.nextBytes(data);
+			Base64Buffer buffer = new Base64Buffer(length);
+			// Mix single bytes and chunks, as an encoder writes them.
+			int off = 0;
+			while (off < length) {
+				if (random.nextBoolean()) {
+					buffer.write(data[off++]);
+				} else {
+					int n = Math.min(length - off, random.nextInt(8));
+					buffer.write(data, off, n);
+					off += n;
+				}
+			}
+			String expected = encode(data);
+			assertEquals(expected, buffer.toString());
+			assertEquals(expected.length(), Base64Buffer.getEncodedLength(length));
+		}
+	}
+
+	@Test
+	public void growsWhenTheInputIsLarger() {
+		byte[] data = new byte[10000];
+		new Random(2).nextBytes(data);
+		Base64Buffer buffer = new Base64Buffer(1);
+		buffer.write(data, 0, data.length);
+		assertEquals(encode(data), buffer.toString());
+	}
+
+	@Test
+	public void jpegSizeBoundHoldsForNoise() throws IOException {
+		BufferedImage image = noise(160, 120, 3);
+		for (int quality = 0; quality <= 100; quality++) {
+			int size = compress(image, quality).length;
+			int bound = Base64Buffer.getJpegSizeBound(image.getWidth(), image.getHeight(), quality);
+			assertTrue("Quality " + quality + ": " + size + " > " + bound, size <= bound);
+		}
+	}
+
+	@Test
+	public void jpegSizeBoundHoldsForTinyImages() throws IOException {
+		BufferedImage image = noise(1, 1, 4);
+		assertTrue(compress(image, 100).length <= Base64Buffer.getJpegSizeBound(1, 1, 100));
+	}
+
+	@Test
+	public void jpegSizeBoundIsCapped() {
+		assertEquals(Integer.MAX_VALUE / 2, Base64Buffer.getJpegSizeBound(100000, 100000, 100));
+	}
+}
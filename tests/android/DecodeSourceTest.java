@@ -0,0 +1,148 @@
+package com.tuxpan.foregroundcameragalleryplugin;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DecodeSourceTest {
+
+	private static final int LENGTH = DecodeSource.MARK_LIMIT * 2;
+
+	private byte[] data;
+	private File file;
+
+	@Before
+	public void setUp() throws IOException {
+		data = new byte[LENGTH];
+		new Random(1).nextBytes(data);
+		file = File.createTempFile("decode-source", ".jpg");
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(data);
+		} finally {
+			out.close();
+		}
+	}
+
+	@After
+	public void tearDown() {
+		file.delete();
+	}
+
+	private static byte[] read(InputStream in, int length) throws IOException {
+		byte[] bytes = new byte[length];
+		int n = 0;
+		while (n < length) {
+			int read = in.read(bytes, n, length - n);
+			if (read < 0) {
+				return Arrays.copyOf(bytes, n);
+			}
+			n += read;
+		}
+		return bytes;
+	}
+
+	private DecodeSource fileSource() {
+		return new DecodeSource(new DecodeSource.Opener() {
+			public InputStream open() throws IOException {
+				return new FileInputStream(file);
+			}
+		});
+	}
+
+	/**
+	 * @return a source of a stream that is neither a file nor in memory, like
+	 *         the one of a remote content:// URI
+	 */
+	private DecodeSource streamSource() {
+		return new DecodeSource(new DecodeSource.Opener() {
+			public InputStream open() {
+				return new FilterInputStream(new ByteArrayInputStream(data)) {
+				};
+			}
+		});
+	}
+
+	@Test
+	public void rewindsFileThroughItsChannel() throws IOException {
+		DecodeSource source = fileSource();
+		try {
+			// Bounds, then pixels
+			assertArrayEquals(Arrays.copyOf(data, 1000), read(source.rewind(), 1000));
+			assertArrayEquals(data, read(source.rewind(), LENGTH));
+			assertEquals(1, source.getOpenCount());
+			assertEquals(1000 + LENGTH, source.getBytesRead());
+		} finally {
+			source.close();
+		}
+	}
+
+	@Test
+	public void rewindsBytesInMemory() throws IOException {
+		DecodeSource source = DecodeSource.fromBytes(data);
+		try {
+			assertArrayEquals(Arrays.copyOf(data, 1000), read(source.rewind(), 1000));
+			assertArrayEquals(data, read(source.rewind(), LENGTH));
+			assertEquals(1, source.getOpenCount());
+			assertEquals(1000 + LENGTH, source.getBytesRead());
+		} finally {
+			source.close();
+		}
+	}
+
+	@Test
+	public void rewindsStreamWithinItsMark() throws IOException {
+		DecodeSource source = streamSource();
+		try {
+			InputStream in = source.rewind();
+			// A decoder marking again with a smaller limit keeps the start.
+			in.mark(16);
+			assertArrayEquals(Arrays.copyOf(data, 1000), read(in, 1000));
+			assertArrayEquals(data, read(source.rewind(), LENGTH));
+			assertEquals(1, source.getOpenCount());
+			// The buffered bytes are served again, not read twice.
+			assertEquals(LENGTH, source.getBytesRead());
+		} finally {
+			source.close();
+		}
+	}
+
+	@Test
+	public void reopensStreamReadPastItsMark() throws IOException {
+		DecodeSource source = streamSource();
+		try {
+			int length = DecodeSource.MARK_LIMIT + 1000;
+			assertArrayEquals(Arrays.copyOf(data, length), read(source.rewind(), length));
+			assertArrayEquals(data, read(source.rewind(), LENGTH));
+			assertEquals(2, source.getOpenCount());
+		} finally {
+			source.close();
+		}
+	}
+
+	@Test
+	public void reopensAfterClose() throws IOException {
+		DecodeSource source = fileSource();
+		read(source.rewind(), 1000);
+		source.close();
+		try {
+			assertArrayEquals(data, read(source.rewind(), LENGTH));
+			assertEquals(2, source.getOpenCount());
+		} finally {
+			source.close();
+		}
+	}
+}
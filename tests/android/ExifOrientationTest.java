@@ -0,0 +1,157 @@
+package com.tuxpan.foregroundcameragalleryplugin;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+import android.media.ExifInterface;
+
+/**
+ * Splices the sample pictures of fixtures/, see
+ * {@link ExifThumbnailReaderTest}, all of them with an orientation tag except
+ * no-exif.jpg.
+ */
+public class ExifOrientationTest {
+
+	/**
+	 * @return the JPEG as JpegWriter writes it
+	 */
+	private static byte[] write(byte[] jpeg, byte[] segment) {
+		if (segment == null || segment.length == 0) {
+			return jpeg;
+		}
+		byte[] written = new byte[jpeg.length + segment.length];
+		System.arraycopy(jpeg, 0, written, 0, 2);
+		System.arraycopy(segment, 0, written, 2, segment.length);
+		System.arraycopy(jpeg, 2, written, 2 + segment.length, jpeg.length - 2);
+		return written;
+	}
+
+	/**
+	 * @return the orientation tag of IFD0 of the first EXIF segment, or -1
+	 */
+	private static int readOrientation(byte[] jpeg) {
+		int offset = 2;
+		while (offset + 4 <= jpeg.length && (jpeg[offset] & 0xFF) == 0xFF && (jpeg[offset + 1] & 0xFF) != 0xDA) {
+			int length = ((jpeg[offset + 2] & 0xFF) << 8) | (jpeg[offset + 3] & 0xFF);
+			int tiff = offset + 10;
+			if ((jpeg[offset + 1] & 0xFF) == 0xE1 && jpeg[offset + 4] == 'E' && jpeg[offset + 5] == 'x') {
+				boolean littleEndian = jpeg[tiff] == 'I';
+				int ifd0 = tiff + readInt(jpeg, tiff + 4, littleEndian);
+				for (int i = 0; i < readShort(jpeg, ifd0, littleEndian); i++) {
+					int entry = ifd0 + 2 + i * 12;
+					if (readShort(jpeg, entry, littleEndian) == 0x0112) {
+						return readShort(jpeg, entry + 8, littleEndian);
+					}
+				}
+				return -1;
+			}
+			offset += 2 + length;
+		}
+		return -1;
+	}
+
+	private static int readShort(byte[] data, int offset, boolean littleEndian) {
+		int b0 = data[offset] & 0xFF;
+		int b1 = data[offset + 1] & 0xFF;
+		return littleEndian ? (b1 << 8) | b0 : (b0 << 8) | b1;
+	}
+
+	private static int readInt(byte[] data, int offset, boolean littleEndian) {
+		int s0 = readShort(data, offset, littleEndian);
+		int s1 = readShort(data, offset + 2, littleEndian);
+		return littleEndian ? (s1 << 16) | s0 : (s0 << 16) | s1;
+	}
+
+	private static byte[] readThumbnail(byte[] jpeg) throws IOException {
+		return ExifThumbnailReader.read(new ByteArrayInputStream(jpeg));
+	}
+
+	private static void assertPatchedInPlace(String name) throws IOException {
+		byte[] original = ExifThumbnailReaderTest.fixture(name);
+		byte[] jpeg = original.clone();
+		assertNull(ExifOrientation.splice(jpeg, ExifInterface.ORIENTATION_ROTATE_90));
+		assertEquals(ExifInterface.ORIENTATION_ROTATE_90, readOrientation(jpeg));
+		assertEquals(original.length, jpeg.length);
+		int changed = 0;
+		for (int i = 0; i < jpeg.length; i++) {
+			if (jpeg[i] != original[i]) {
+				changed++;
+			}
+		}
+		// The low byte of the SHORT only, from 1 to 6
+		assertEquals(1, changed);
+		assertArrayEquals(readThumbnail(original), readThumbnail(jpeg));
+	}
+
+	@Test
+	public void patchesLittleEndianApp1InPlace() throws IOException {
+		assertPatchedInPlace("exif-thumbnail-ii.jpg");
+		assertArrayEquals(ExifThumbnailReaderTest.fixture("thumbnail.jpg"), readThumbnail(ExifThumbnailReaderTest.fixture("exif-thumbnail-ii.jpg")));
+	}
+
+	@Test
+	public void patchesBigEndianApp1InPlace() throws IOException {
+		assertPatchedInPlace("exif-thumbnail-mm.jpg");
+	}
+
+	@Test
+	public void patchesExifAfterXmp() throws IOException {
+		assertPatchedInPlace("xmp-then-exif.jpg");
+	}
+
+	@Test
+	public void patchesApp1WithoutThumbnail() throws IOException {
+		assertPatchedInPlace("exif-no-thumbnail.jpg");
+		assertNull(readThumbnail(ExifThumbnailReaderTest.fixture("exif-no-thumbnail.jpg")));
+	}
+
+	@Test
+	public void splicesSegmentWithoutApp1() throws IOException {
+		byte[] original = ExifThumbnailReaderTest.fixture("no-exif.jpg");
+		byte[] jpeg = original.clone();
+		byte[] segment = ExifOrientation.splice(jpeg, ExifInterface.ORIENTATION_ROTATE_270);
+		assertNotNull(segment);
+		assertTrue(segment.length > 0);
+		assertArrayEquals(original, jpeg);
+
+		byte[] written = write(jpeg, segment);
+		assertEquals(-1, readOrientation(original));
+		assertEquals(ExifInterface.ORIENTATION_ROTATE_270, readOrientation(written));
+		// A well-formed EXIF segment without IFD1, before the image data
+		assertNull(readThumbnail(written));
+		assertNotNull(ImageIO.read(new ByteArrayInputStream(written)));
+	}
+
+	@Test
+	public void copiesSegmentWithoutThumbnail() throws IOException {
+		byte[] original = ExifThumbnailReaderTest.fixture("exif-thumbnail-ii.jpg");
+		byte[] segment = ExifOrientation.copySegment(original, ExifInterface.ORIENTATION_ROTATE_180);
+		assertArrayEquals(original, ExifThumbnailReaderTest.fixture("exif-thumbnail-ii.jpg"));
+
+		byte[] written = write(ExifThumbnailReaderTest.fixture("no-exif.jpg"), segment);
+		assertEquals(ExifInterface.ORIENTATION_ROTATE_180, readOrientation(written));
+		// IFD1 is unlinked, the thumbnail may not match the new encoding.
+		assertNull(readThumbnail(written));
+		assertNotNull(ImageIO.read(new ByteArrayInputStream(written)));
+	}
+
+	@Test
+	public void ignoresNonJpeg() {
+		byte[] data = Arrays.copyOf(new byte[] { 'G', 'I', 'F', '8', '9', 'a' }, 16);
+		byte[] segment = ExifOrientation.splice(data, ExifInterface.ORIENTATION_ROTATE_90);
+		// A fresh segment, the data is left alone.
+		assertNotNull(segment);
+		assertArrayEquals(Arrays.copyOf(new byte[] { 'G', 'I', 'F', '8', '9', 'a' }, 16), data);
+	}
+}
@@ -0,0 +1,106 @@
+package com.tuxpan.foregroundcameragalleryplugin;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.junit.Test;
+
+/**
+ * Sample pictures in fixtures/, a 64x48 picture with the 16x12
+ * fixtures/thumbnail.jpg embedded in its EXIF data.
+ */
+public class ExifThumbnailReaderTest {
+
+	static byte[] fixture(String name) throws IOException {
+		InputStream in = ExifThumbnailReaderTest.class.getResourceAsStream("/fixtures/" + name);
+		if (in == null) {
+			throw new IOException("Missing fixture " + name);
+		}
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			int n;
+			while ((n = in.read(buffer)) != -1) {
+				out.write(buffer, 0, n);
+			}
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+
+	private static byte[] read(byte[] jpeg) throws IOException {
+		return ExifThumbnailReader.read(new ByteArrayInputStream(jpeg));
+	}
+
+	@Test
+	public void readsLittleEndianThumbnail() throws IOException {
+		assertArrayEquals(fixture("thumbnail.jpg"), read(fixture("exif-thumbnail-ii.jpg")));
+	}
+
+	@Test
+	public void readsThumbnailFromFile() throws Exception {
+		String path = new File(ExifThumbnailReaderTest.class.getResource("/fixtures/exif-thumbnail-ii.jpg").toURI()).getPath();
+		assertArrayEquals(fixture("thumbnail.jpg"), ExifThumbnailReader.read(path));
+	}
+
+	@Test
+	public void readsBigEndianThumbnail() throws IOException {
+		assertArrayEquals(fixture("thumbnail.jpg"), read(fixture("exif-thumbnail-mm.jpg")));
+	}
+
+	@Test
+	public void skipsXmpBeforeExif() throws IOException {
+		assertArrayEquals(fixture("thumbnail.jpg"), read(fixture("xmp-then-exif.jpg")));
+	}
+
+	@Test
+	public void noThumbnailWithoutIfd1() throws IOException {
+		assertNull(read(fixture("exif-no-thumbnail.jpg")));
+	}
+
+	@Test
+	public void noThumbnailWithoutExif() throws IOException {
+		assertNull(read(fixture("no-exif.jpg")));
+	}
+
+	@Test
+	public void noThumbnailInThumbnail() throws IOException {
+		// A bare JPEG, image data right after its tables
+		assertNull(read(fixture("thumbnail.jpg")));
+	}
+
+	@Test
+	public void rejectsOffsetOutOfSegment() throws IOException {
+		byte[] jpeg = fixture("exif-thumbnail-ii.jpg");
+		int offset = findThumbnailOffset(jpeg);
+		// Point the thumbnail far past the end of the segment.
+		jpeg[offset + 1] = 0x7F;
+		assertNull(read(jpeg));
+	}
+
+	@Test
+	public void rejectsNonJpeg() throws IOException {
+		assertNull(read(new byte[] { 'G', 'I', 'F', '8', '9', 'a', 0, 0 }));
+	}
+
+	/**
+	 * @return the position in the file of the little-endian value of the
+	 *         JPEGInterchangeFormat tag
+	 */
+	private static int findThumbnailOffset(byte[] jpeg) {
+		for (int i = 0; i + 12 <= jpeg.length; i++) {
+			// tag 0x0201, type LONG, count 1
+			if (jpeg[i] == 0x01 && jpeg[i + 1] == 0x02 && jpeg[i + 2] == 4 && jpeg[i + 3] == 0 && jpeg[i + 4] == 1) {
+				return i + 8;
+			}
+		}
+		throw new AssertionError("No JPEGInterchangeFormat tag");
+	}
+}
@@ -0,0 +1,50 @@
+package com.tuxpan.foregroundcameragalleryplugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ForegroundCameraLauncherTest {
+
+	@Test
+	public void sampleSizeOfExactMultiples() {
+		assertEquals(1, ForegroundCameraLauncher.calculateSampleSize(4000, 3000, 4000, 3000));
+		assertEquals(2, ForegroundCameraLauncher.calculateSampleSize(4000, 3000, 2000, 1500));
+		assertEquals(4, ForegroundCameraLauncher.calculateSampleSize(4000, 3000, 1000, 750));
+		assertEquals(8, ForegroundCameraLauncher.calculateSampleSize(4000, 3000, 500, 375));
+	}
+
+	@Test
+	public void sampleSizeKeepsBothSidesLargeEnough() {
+		// 4000 / 4 = 1000 would be narrower than 1100.
+		assertEquals(2, ForegroundCameraLauncher.calculateSampleSize(4000, 3000, 1100, 800));
+		// Limited by the height: 2000 / 4 = 500 < 1000
+		assertEquals(2, ForegroundCameraLauncher.calculateSampleSize(3000, 2000, 1000, 1000));
+		assertEquals(4, ForegroundCameraLauncher.calculateSampleSize(4000, 3000, 999, 749));
+	}
+
+	@Test
+	public void sampleSizeIsAPowerOfTwo() {
+		for (int dst = 1; dst <= 3000; dst += 7) {
+			int sampleSize = ForegroundCameraLauncher.calculateSampleSize(4000, 3000, dst, dst);
+			assertEquals("Target " + dst, 1, Integer.bitCount(sampleSize));
+			assertTrue("Target " + dst, 3000 / sampleSize >= dst);
+			assertTrue("Target " + dst, 3000 / (sampleSize * 2) < dst);
+		}
+	}
+
+	@Test
+	public void sampleSizeOfNoTarget() {
+		// Down to a single pixel, as for a target of 1
+		assertEquals(2048, ForegroundCameraLauncher.calculateSampleSize(4000, 3000, 0, 0));
+		assertEquals(2048, ForegroundCameraLauncher.calculateSampleSize(4000, 3000, -1, -100));
+		assertEquals(ForegroundCameraLauncher.calculateSampleSize(4000, 3000, 1, 1), ForegroundCameraLauncher.calculateSampleSize(4000, 3000, 0, 0));
+	}
+
+	@Test
+	public void sampleSizeOfLargerTarget() {
+		assertEquals(1, ForegroundCameraLauncher.calculateSampleSize(100, 100, 200, 200));
+		assertEquals(1, ForegroundCameraLauncher.calculateSampleSize(4000, 3000, 8000, 100));
+	}
+}
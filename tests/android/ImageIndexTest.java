@@ -0,0 +1,72 @@
+package com.tuxpan.foregroundcameragalleryplugin;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Calendar;
+
+import org.junit.Test;
+
+public class ImageIndexTest {
+
+	private static long date(int year, int month, int day) {
+		Calendar calendar = Calendar.getInstance();
+		calendar.clear();
+		calendar.set(year, month, day, 12, 0);
+		return calendar.getTimeInMillis();
+	}
+
+	private static int[] imageIDs(ImageIndex index) {
+		int[] imageIDs = new int[index.size()];
+		for (int i = 0; i < imageIDs.length; i++) {
+			imageIDs[i] = index.getImageID(i);
+		}
+		return imageIDs;
+	}
+
+	@Test
+	public void applyMergesInGalleryOrder() {
+		ImageIndex current = ImageIndex.of(new int[] { 3, 2, 1 }, new long[] { date(2015, Calendar.MARCH, 10), date(2015, Calendar.FEBRUARY, 10), date(2015, Calendar.JANUARY, 10) },
+				new long[] { 30, 20, 10 });
+		// 4 is new, 2 was modified and 1 removed
+		ImageIndex delta = ImageIndex.of(new int[] { 4, 2 }, new long[] { date(2015, Calendar.APRIL, 10), date(2015, Calendar.FEBRUARY, 10) }, new long[] { 40, 50 });
+
+		ImageIndex merged = current.apply(delta, new int[] { 1 });
+
+		assertArrayEquals(new int[] { 4, 3, 2 }, imageIDs(merged));
+		assertEquals(50, merged.getDateModified(2));
+		assertEquals(50, merged.getMaxDateModified());
+	}
+
+	@Test
+	public void applyKeepsSectionsWhenRowsAreDropped() {
+		ImageIndex current = ImageIndex.of(new int[] { 3, 2, 1 }, new long[] { date(2015, Calendar.MARCH, 10), date(2015, Calendar.FEBRUARY, 10), date(2015, Calendar.JANUARY, 10) },
+				new long[] { 30, 20, 10 });
+		assertNotNull(current.getSections());
+		// The delta always holds the rows of the last second again.
+		ImageIndex delta = ImageIndex.of(new int[] { 3 }, new long[] { date(2015, Calendar.MARCH, 10) }, new long[] { 30 });
+
+		ImageIndex merged = current.apply(delta, new int[0]);
+
+		assertEquals(3, merged.size());
+		assertTrue(merged.isComplete());
+		DateSections sections = merged.getSections();
+		assertNotNull(sections);
+		assertEquals(3, sections.getLabels().length);
+		assertEquals(1, sections.getPosition(1));
+		assertEquals(2, sections.getSection(2));
+	}
+
+	@Test
+	public void applyAfterRemovalIsComplete() {
+		ImageIndex current = ImageIndex.of(new int[] { 2, 1 }, new long[] { date(2015, Calendar.FEBRUARY, 10), date(2015, Calendar.JANUARY, 10) }, new long[] { 20, 10 });
+
+		ImageIndex merged = current.apply(ImageIndex.of(new int[0], new long[0], new long[0]), new int[] { 2 });
+
+		assertArrayEquals(new int[] { 1 }, imageIDs(merged));
+		assertTrue(merged.isComplete());
+		assertNotNull(merged.getSections());
+	}
+}
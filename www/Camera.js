@@ -58,14 +58,31 @@ cameraExport.getPicture = function(successCallback, errorCallback, options) {
     var saveToPhotoAlbum = !!options.saveToPhotoAlbum;
     var popoverOptions = getValue(options.popoverOptions, null);
     var cameraDirection = getValue(options.cameraDirection, Camera.Direction.BACK);
+    var selectMultiple = !!options.selectMultiple;
+    var burst = !!options.burst;
+    var fastCapture = !!options.fastCapture;
 
     var args = [quality, destinationType, sourceType, targetWidth, targetHeight, encodingType,
-                mediaType, allowEdit, correctOrientation, saveToPhotoAlbum, popoverOptions, cameraDirection];
+                mediaType, allowEdit, correctOrientation, saveToPhotoAlbum, popoverOptions, cameraDirection,
+                selectMultiple, burst, fastCapture];
 
     exec(successCallback, errorCallback, "Camera", "takePicture", args);
     return new CameraPopoverHandle();
 };
 
+/**
+ * Builds the photo library index and decodes the first thumbnails in the
+ * background, so that the next getPicture from the PHOTOLIBRARY opens at once.
+ *
+ * @param {Function} successCallback
+ * @param {Function} errorCallback
+ * @param {Number} thumbnails Number of thumbnails to decode (optional).
+ */
+cameraExport.prewarmGallery = function(successCallback, errorCallback, thumbnails) {
+    var args = thumbnails ? [thumbnails] : [];
+    exec(successCallback, errorCallback, "Camera", "prewarmGallery", args);
+};
+
 cameraExport.cleanup = function(successCallback, errorCallback) {
     exec(successCallback, errorCallback, "Camera", "cleanup", []);
 };